@@ -90,6 +90,23 @@ class NodesAdapter (
     private var mNodeClickCallback: NodeClickCallback? = null
     private var mClipboardHelper = ClipboardHelper(context)
 
+    private var mRecyclerView: RecyclerView? = null
+    // Bound view holders with a TOTP, refreshed by a single ticker
+    private val mOtpViewHolders = LinkedHashSet<NodeViewHolder>()
+    private var mOtpTickerStarted = false
+    private val mOtpTicker = object : Runnable {
+        override fun run() {
+            mOtpViewHolders.forEach { holder ->
+                refreshOtpView(holder)
+            }
+            if (mOtpViewHolders.isNotEmpty()) {
+                mRecyclerView?.postDelayed(this, 1000)
+            } else {
+                mOtpTickerStarted = false
+            }
+        }
+    }
+
     @ColorInt
     private val mColorSurfaceContainer: Int
     @ColorInt
@@ -177,6 +194,12 @@ class NodesAdapter (
         mVirtualGroup = group.isVirtual
         assignPreferences()
         mNodeSortedList.replaceAll(group.getFilteredChildren(mEntryFilters))
+        // Decode the custom icons of the first nodes before they are bound
+        val firstNodes = ArrayList<Node>()
+        for (i in 0 until minOf(mNodeSortedList.size(), PREWARM_ICONS_SIZE)) {
+            firstNodes.add(mNodeSortedList.get(i))
+        }
+        database.iconDrawableFactory.prewarmDatabaseIcons(firstNodes.map { it.icon })
     }
 
     private inner class NodeSortedListCallback: SortedListAdapterCallback<Node>(this) {
@@ -414,17 +437,17 @@ class NodesAdapter (
             }
 
             val otpElement = entry.getOtpElement()
-            holder.otpContainer?.removeCallbacks(holder.otpRunnable)
+            mOtpViewHolders.remove(holder)
+            holder.otpElement = null
             if (otpElement != null
                 && mShowOTP
                 && otpElement.token.isNotEmpty()) {
 
-                // Execute runnable to show progress
-                holder.otpRunnable.action = {
-                    populateOtpView(holder, otpElement)
-                }
+                holder.otpElement = otpElement
+                // Show progress with the shared ticker
                 if (otpElement.type == OtpType.TOTP) {
-                    holder.otpRunnable.postDelayed()
+                    mOtpViewHolders.add(holder)
+                    startOtpTicker()
                 }
                 populateOtpView(holder, otpElement)
 
@@ -503,38 +526,76 @@ class NodesAdapter (
         }
     }
 
-    private fun populateOtpView(holder: NodeViewHolder?, otpElement: OtpElement?) {
-        when (otpElement?.type) {
+    override fun onViewRecycled(holder: NodeViewHolder) {
+        super.onViewRecycled(holder)
+        database.iconDrawableFactory.cancelDatabaseIcon(holder.icon)
+        mOtpViewHolders.remove(holder)
+        holder.otpElement = null
+    }
+
+    override fun onAttachedToRecyclerView(recyclerView: RecyclerView) {
+        super.onAttachedToRecyclerView(recyclerView)
+        mRecyclerView = recyclerView
+        if (mOtpViewHolders.isNotEmpty())
+            startOtpTicker()
+    }
+
+    override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView)
+        recyclerView.removeCallbacks(mOtpTicker)
+        mOtpTickerStarted = false
+        mRecyclerView = null
+    }
+
+    private fun startOtpTicker() {
+        if (!mOtpTickerStarted) {
+            mRecyclerView?.let { recyclerView ->
+                mOtpTickerStarted = true
+                recyclerView.postDelayed(mOtpTicker, 1000)
+            }
+        }
+    }
+
+    private fun populateOtpView(holder: NodeViewHolder, otpElement: OtpElement) {
+        holder.otpTokenString = null
+        refreshOtpView(holder)
+        holder.otpToken?.setTextSize(mTextSizeUnit, mOtpTokenTextDefaultDimension, mPrefSizeMultiplier)
+        holder.otpContainer?.setOnClickListener {
+            try {
+                mClipboardHelper.copyToClipboard(
+                    TemplateField.getLocalizedName(context, TemplateField.LABEL_TOKEN),
+                    otpElement.token,
+                    true
+                )
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to copy the OTP token", e)
+            }
+        }
+    }
+
+    /**
+     * Refresh the progress of the OTP of [holder], the token view is only changed with the token
+     */
+    private fun refreshOtpView(holder: NodeViewHolder) {
+        val otpElement = holder.otpElement ?: return
+        when (otpElement.type) {
             OtpType.HOTP -> {
-                holder?.otpProgress?.apply {
+                holder.otpProgress?.apply {
                     max = 100
                     setProgressCompat(100, true)
                 }
             }
             OtpType.TOTP -> {
-                holder?.otpProgress?.apply {
+                holder.otpProgress?.apply {
                     max = otpElement.period
                     setProgressCompat(otpElement.secondsRemaining, true)
                 }
             }
-            null -> {}
-        }
-        holder?.otpToken?.apply {
-            text = otpElement?.tokenString
-            setTextSize(mTextSizeUnit, mOtpTokenTextDefaultDimension, mPrefSizeMultiplier)
         }
-        holder?.otpContainer?.setOnClickListener {
-            otpElement?.token?.let { token ->
-                try {
-                    mClipboardHelper.copyToClipboard(
-                        TemplateField.getLocalizedName(context, TemplateField.LABEL_TOKEN),
-                        token,
-                        true
-                    )
-                } catch (e: Exception) {
-                    Log.e(TAG, "Unable to copy the OTP token", e)
-                }
-            }
+        val tokenString = otpElement.tokenString
+        if (tokenString != holder.otpTokenString) {
+            holder.otpTokenString = tokenString
+            holder.otpToken?.text = tokenString
         }
     }
 
@@ -554,20 +615,6 @@ class NodesAdapter (
         }
     }
 
-    class OtpRunnable(val view: View?): Runnable {
-
-        var action: (() -> Unit)? = null
-
-        override fun run() {
-            action?.invoke()
-            postDelayed()
-        }
-
-        fun postDelayed() {
-            view?.postDelayed(this, 1000)
-        }
-    }
-
     override fun getItemCount(): Int {
         return mNodeSortedList.size()
     }
@@ -598,12 +645,16 @@ class NodesAdapter (
         var otpContainer: ViewGroup? = itemView.findViewById(R.id.node_otp_container)
         var otpProgress: CircularProgressIndicator? = itemView.findViewById(R.id.node_otp_progress)
         var otpToken: TextView? = itemView.findViewById(R.id.node_otp_token)
-        var otpRunnable: OtpRunnable = OtpRunnable(otpContainer)
+        var otpElement: OtpElement? = null
+        var otpTokenString: String? = null
         var numberChildren: TextView? = itemView.findViewById(R.id.node_child_numbers)
         var attachmentIcon: ImageView? = itemView.findViewById(R.id.node_attachment_icon)
     }
 
     companion object {
         private val TAG = NodesAdapter::class.java.name
+
+        // Approximately the number of nodes visible in a screen
+        private const val PREWARM_ICONS_SIZE = 24
     }
 }
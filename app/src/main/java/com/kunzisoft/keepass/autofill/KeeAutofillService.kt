@@ -65,6 +65,7 @@ class KeeAutofillService : AutofillService() {
         mDatabaseTaskProvider?.onDatabaseRetrieved = { database ->
             this.mDatabase = database
         }
+        WebDomain.preload(this)
 
         getPreferences()
     }
@@ -1,6 +1,7 @@
 package com.kunzisoft.keepass.database
 
 import android.net.Uri
+import android.util.Log
 import com.kunzisoft.keepass.database.element.Database
 import com.kunzisoft.keepass.database.element.icon.IconImageCustom
 import com.kunzisoft.keepass.icons.IconDrawableFactory
@@ -11,6 +12,15 @@ class ContextualDatabase: Database() {
 
     var fileUri: Uri? = null
 
+    // Save of the modifications not yet written, performed in background before the database is closed
+    @Volatile
+    var pendingSave: (() -> Unit)? = null
+    @Volatile
+    private var mPendingSaveRunning = false
+
+    val hasPendingModifications: Boolean
+        get() = pendingSave != null || mPendingSaveRunning
+
     val iconDrawableFactory = IconDrawableFactory(
         retrieveBinaryCache = { binaryCache },
         retrieveCustomIconBinary = { iconId -> getBinaryForCustomIcon(iconId) }
@@ -26,6 +36,28 @@ class ContextualDatabase: Database() {
         super.clearIndexesAndBinaries(filesDirectory)
     }
 
+    /**
+     * Save in the current thread the modifications waiting for a deferred save,
+     * never call it from the main thread
+     */
+    fun savePendingModifications() {
+        val save = synchronized(this) {
+            pendingSave?.also {
+                pendingSave = null
+                mPendingSaveRunning = true
+            }
+        }
+        save?.let {
+            try {
+                it.invoke()
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to save the pending modifications", e)
+            } finally {
+                mPendingSaveRunning = false
+            }
+        }
+    }
+
     override fun clearAndClose(filesDirectory: File?) {
         super.clearAndClose(filesDirectory)
         this.fileUri = null
@@ -44,6 +44,8 @@ class CreateDatabaseRunnable(
 ) {
     override fun onStartRun() {
         try {
+            // Don't lose the modifications of the previous database
+            mDatabase.savePendingModifications()
             // Create new database record
             mDatabase.apply {
                 this.fileUri = databaseUri
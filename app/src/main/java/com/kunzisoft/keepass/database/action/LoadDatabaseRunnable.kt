@@ -27,6 +27,7 @@ import com.kunzisoft.keepass.database.element.binary.BinaryData
 import com.kunzisoft.keepass.database.exception.DatabaseInputException
 import com.kunzisoft.keepass.database.exception.UnknownDatabaseLocationException
 import com.kunzisoft.keepass.hardware.HardwareKey
+import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ActionRunnable
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.getBinaryDir
@@ -48,6 +49,8 @@ class LoadDatabaseRunnable(
     private val binaryDir = context.getBinaryDir()
 
     override fun onStartRun() {
+        // Don't lose the modifications of the previous database
+        mDatabase.savePendingModifications()
         // Clear before we load
         mDatabase.clearAndClose(binaryDir)
     }
@@ -68,6 +71,7 @@ class LoadDatabaseRunnable(
                     BinaryData.canMemoryBeAllocatedInRAM(context, memoryWanted)
                 },
                 mFixDuplicateUUID,
+                PreferencesUtil.isPipelinedReadingEnabled(context),
                 progressTaskUpdater
             )
         } catch (e: DatabaseInputException) {
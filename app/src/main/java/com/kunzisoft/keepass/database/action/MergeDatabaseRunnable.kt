@@ -27,6 +27,7 @@ import com.kunzisoft.keepass.database.element.binary.BinaryData
 import com.kunzisoft.keepass.database.exception.DatabaseException
 import com.kunzisoft.keepass.database.exception.UnknownDatabaseLocationException
 import com.kunzisoft.keepass.hardware.HardwareKey
+import com.kunzisoft.keepass.settings.PreferencesUtil
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.getUriInputStream
 
@@ -63,6 +64,7 @@ class MergeDatabaseRunnable(
                 { memoryWanted ->
                     BinaryData.canMemoryBeAllocatedInRAM(context, memoryWanted)
                 },
+                PreferencesUtil.isPipelinedReadingEnabled(context),
                 progressTaskUpdater
             )
         } catch (e: DatabaseException) {
@@ -26,6 +26,7 @@ import com.kunzisoft.keepass.database.MainCredential
 import com.kunzisoft.keepass.database.exception.DatabaseException
 import com.kunzisoft.keepass.hardware.HardwareKey
 import com.kunzisoft.keepass.tasks.ActionRunnable
+import com.kunzisoft.keepass.utils.getLocalFile
 import com.kunzisoft.keepass.utils.getUriOutputStream
 import java.io.File
 
@@ -48,16 +49,20 @@ open class SaveDatabaseRunnable(
         if ((databaseCopyUri != null || saveDatabase) && result.isSuccess) {
             try {
                 val contentResolver = context.contentResolver
-                // Build temp database file to avoid file corruption if error
-                database.saveData(
-                    cacheFile = File(context.cacheDir, databaseCopyUri.hashCode().toString()),
-                    databaseOutputStream = {
-                        contentResolver
-                            .getUriOutputStream(databaseCopyUri ?: database.fileUri)
-                    },
-                    isNewLocation = databaseCopyUri == null,
-                    mainCredential?.toMasterCredential(contentResolver),
-                    challengeResponseRetriever)
+                val databaseUri = databaseCopyUri ?: database.fileUri
+                // A pending save can be performed at the same time when the database is closed
+                synchronized(database) {
+                    // Build temp database file to avoid file corruption if error
+                    database.saveData(
+                        cacheFile = File(context.cacheDir, databaseCopyUri.hashCode().toString()),
+                        databaseFile = databaseUri?.getLocalFile(),
+                        databaseOutputStream = {
+                            contentResolver.getUriOutputStream(databaseUri)
+                        },
+                        isNewLocation = databaseCopyUri == null,
+                        mainCredential?.toMasterCredential(contentResolver),
+                        challengeResponseRetriever)
+                }
             } catch (e: DatabaseException) {
                 setError(e)
             }
@@ -27,6 +27,7 @@ import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.ColorDrawable
 import android.graphics.drawable.Drawable
 import android.util.Log
+import android.util.LruCache
 import android.widget.ImageView
 import android.widget.RemoteViews
 import androidx.core.content.res.ResourcesCompat
@@ -38,10 +39,12 @@ import com.kunzisoft.keepass.database.element.icon.IconImageCustom
 import com.kunzisoft.keepass.database.element.icon.IconImageDraw
 import com.kunzisoft.keepass.icon.IconPack
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.withContext
-import java.lang.ref.WeakReference
 import java.util.*
 
 /**
@@ -52,38 +55,68 @@ class IconDrawableFactory(
     private val retrieveCustomIconBinary: (iconId: UUID) -> BinaryData?,
 ) {
 
-    /** customIconMap
-     * Cache for icon drawable.
-     * Keys: UUID, Values: Drawables
+    /** customIconCache
+     * Cache for custom icon bitmaps, limited by the memory used by the bitmaps.
+     * Keys: UUID and size, Values: Bitmaps
+     * Custom icons are never tinted, so the tint is not part of the key
      */
-    private val customIconMap = HashMap<UUID, WeakReference<Drawable>>()
+    private val customIconCache = object : LruCache<CustomCacheKey, Bitmap>(
+        (Runtime.getRuntime().maxMemory() / CUSTOM_ICON_CACHE_MEMORY_DIVISOR).toInt()
+    ) {
+        override fun sizeOf(key: CustomCacheKey, value: Bitmap): Int {
+            return value.byteCount
+        }
+    }
 
-    /** standardIconMap
+    /** standardIconCache
      * Cache for icon drawable.
-     * Keys: Integer, Values: Drawables
+     * Keys: Integer, size and tint, Values: Drawables
+     */
+    private val standardIconCache = LruCache<CacheKey, Drawable>(STANDARD_ICON_CACHE_SIZE)
+
+    /**
+     * Decodes of custom icons in progress, shared by all the requests of the same icon
+     */
+    private val customIconDecodes = HashMap<CustomCacheKey, CustomIconDecode>()
+    // Incremented at each clear, so that a decode in progress is not cached after it
+    @Volatile
+    private var mCacheGeneration = 0
+
+    private val mDecodeScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * Jobs of the image views waiting for a custom icon, only accessed in the main thread
      */
-    private val standardIconMap = HashMap<CacheKey, WeakReference<Drawable>>()
+    private val mImageViewJobs = WeakHashMap<ImageView, Job>()
 
     /**
      * To load an icon pack only if current one is different
      */
+    @Volatile
     private var mCurrentIconPack: IconPack? = null
 
     /**
-     * Get the [SuperDrawable] [iconDraw] (from cache, or build it and add it to the cache if not exists yet), then tint it with [tintColor] if needed
+     * Get the [SuperDrawable] [iconDraw] (from cache, or build it and add it to the cache if not exists yet), then tint it with [tintColor] if needed,
+     * the custom icon is not decoded if [decodeCustomIcon] is false, the standard icon is used if it is not in the cache
      */
     private fun getIconSuperDrawable(
         context: Context,
         iconDraw: IconImageDraw,
         width: Int,
         tintColor: Int = Color.WHITE,
+        decodeCustomIcon: Boolean = true,
     ): SuperDrawable {
         val icon = iconDraw.getIconImageToDraw()
         val customIconBinary = retrieveCustomIconBinary(icon.custom.uuid)
         val binaryCache = retrieveBinaryCache()
         if (binaryCache != null && customIconBinary != null && customIconBinary.dataExists()) {
-            getIconDrawable(context.resources, icon.custom, customIconBinary)?.let {
-                return SuperDrawable(it)
+            val bitmap = if (decodeCustomIcon) {
+                getIconBitmap(icon.custom, customIconBinary)
+            } else {
+                customIconCache.get(CustomCacheKey(icon.custom.uuid, IconPackChooser.defaultIconSize))
+            }
+            bitmap?.let {
+                return SuperDrawable(BitmapDrawable(context.resources, it))
             }
         }
         val iconPack = IconPackChooser.getSelectedIconPack(context)
@@ -100,34 +133,75 @@ class IconDrawableFactory(
     }
 
     /**
-     * Build a custom [Drawable] from custom [icon]
+     * Get the custom [Bitmap] of [icon] from the cache, or decode it in the current thread
      */
-    private fun getIconDrawable(
-        resources: Resources,
+    private fun getIconBitmap(
+        icon: IconImageCustom,
+        iconCustomBinary: BinaryData,
+    ): Bitmap? {
+        val cacheKey = CustomCacheKey(icon.uuid, IconPackChooser.defaultIconSize)
+        val cacheGeneration = mCacheGeneration
+        return customIconCache.get(cacheKey)
+            ?: decodeIconBitmap(iconCustomBinary, cacheKey, cacheGeneration)
+    }
+
+    /**
+     * Get the custom [Bitmap] of [icon] from the cache, or wait for its decode in background,
+     * the decode is shared with the other requests of the same icon and cancelled if none waits for it anymore
+     */
+    private suspend fun loadIconBitmap(
         icon: IconImageCustom,
-        iconCustomBinary: BinaryData?,
-    ): Drawable? {
-        val patternIcon = PatternIcon(IconPackChooser.defaultIconSize)
+        iconCustomBinary: BinaryData,
+    ): Bitmap? {
+        val cacheKey = CustomCacheKey(icon.uuid, IconPackChooser.defaultIconSize)
+        customIconCache.get(cacheKey)?.let {
+            return it
+        }
+        val iconDecode = synchronized(customIconDecodes) {
+            customIconDecodes.getOrPut(cacheKey) {
+                val cacheGeneration = mCacheGeneration
+                CustomIconDecode(mDecodeScope.async {
+                    decodeIconBitmap(iconCustomBinary, cacheKey, cacheGeneration)
+                })
+            }.apply {
+                waiting++
+            }
+        }
+        try {
+            return iconDecode.bitmap.await()
+        } finally {
+            synchronized(customIconDecodes) {
+                iconDecode.waiting--
+                if (iconDecode.waiting == 0) {
+                    if (customIconDecodes[cacheKey] === iconDecode)
+                        customIconDecodes.remove(cacheKey)
+                    iconDecode.bitmap.cancel()
+                }
+            }
+        }
+    }
+
+    /**
+     * Build a custom [Bitmap] from [iconCustomBinary] and add it to the cache
+     */
+    private fun decodeIconBitmap(
+        iconCustomBinary: BinaryData,
+        cacheKey: CustomCacheKey,
+        cacheGeneration: Int,
+    ): Bitmap? {
         retrieveBinaryCache()?.let { binaryCache ->
-            val draw: Drawable? = customIconMap[icon.uuid]?.get()
-            if (draw == null) {
-                iconCustomBinary?.let { binaryFile ->
-                    try {
-                        var bitmap: Bitmap? =
-                            BitmapFactory.decodeStream(binaryFile.getInputDataStream(binaryCache))
-                        bitmap?.let { bitmapIcon ->
-                            bitmap = resize(bitmapIcon, patternIcon)
-                            val createdDraw = BitmapDrawable(resources, bitmap)
-                            customIconMap[icon.uuid] = WeakReference(createdDraw)
-                            return createdDraw
-                        }
-                    } catch (e: Exception) {
-                        customIconMap.remove(icon.uuid)
-                        Log.e(TAG, "Unable to create the bitmap icon", e)
-                    }
+            try {
+                iconCustomBinary.getInputDataStream(binaryCache).use { inputStream ->
+                    BitmapFactory.decodeStream(inputStream)
+                }?.let { bitmapIcon ->
+                    val bitmap = resize(bitmapIcon, PatternIcon(cacheKey.size))
+                    // Don't fill the cache with an icon decoded before a clear
+                    if (cacheGeneration == mCacheGeneration)
+                        customIconCache.put(cacheKey, bitmap)
+                    return bitmap
                 }
-            } else {
-                return draw
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to create the bitmap icon", e)
             }
         }
         return null
@@ -145,7 +219,7 @@ class IconDrawableFactory(
     ): Drawable {
         val newCacheKey = CacheKey(iconId, width, true, tintColor)
 
-        var draw: Drawable? = standardIconMap[newCacheKey]?.get()
+        var draw: Drawable? = standardIconCache.get(newCacheKey)
         if (draw == null) {
             try {
                 draw = ResourcesCompat.getDrawable(resources, iconId, null)
@@ -154,7 +228,7 @@ class IconDrawableFactory(
             }
 
             if (draw != null) {
-                standardIconMap[newCacheKey] = WeakReference(draw)
+                standardIconCache.put(newCacheKey, draw)
             }
         }
 
@@ -186,7 +260,21 @@ class IconDrawableFactory(
     }
 
     /**
-     * Assign a database [icon] to an ImageView and tint it with [tintColor] if needed
+     * Retrieve the binary of the custom icon of [iconDraw] if it's not yet in the cache
+     */
+    private fun getCustomIconBinaryToDecode(iconDraw: IconImageDraw): BinaryData? {
+        val icon = iconDraw.getIconImageToDraw()
+        val customIconBinary = retrieveCustomIconBinary(icon.custom.uuid)
+        return if (retrieveBinaryCache() != null
+            && customIconBinary != null
+            && customIconBinary.dataExists()
+            && customIconCache.get(CustomCacheKey(icon.custom.uuid, IconPackChooser.defaultIconSize)) == null
+        ) customIconBinary else null
+    }
+
+    /**
+     * Assign a database [icon] to an ImageView and tint it with [tintColor] if needed,
+     * a custom icon not yet in the cache is decoded in background
      */
     fun assignDatabaseIcon(
         imageView: ImageView,
@@ -195,20 +283,15 @@ class IconDrawableFactory(
     ) {
         try {
             val context = imageView.context
-            CoroutineScope(Dispatchers.IO).launch {
-                addToCustomCache(context.resources, icon)
-                withContext(Dispatchers.Main) {
-                    val superDrawable = getIconSuperDrawable(context,
-                        icon,
-                        imageView.width,
-                        tintColor)
-                    imageView.setImageDrawable(superDrawable.drawable)
-                    if (superDrawable.tintable) {
-                        ImageViewCompat.setImageTintList(imageView,
-                            ColorStateList.valueOf(tintColor))
-                    } else {
-                        ImageViewCompat.setImageTintList(imageView, null)
-                    }
+            cancelDatabaseIcon(imageView)
+            val customIconBinary = getCustomIconBinaryToDecode(icon)
+            if (customIconBinary == null) {
+                setIconSuperDrawable(context, imageView, icon, tintColor)
+            } else {
+                mImageViewJobs[imageView] = mDecodeScope.launch(Dispatchers.Main) {
+                    val bitmap = loadIconBitmap(icon.getIconImageToDraw().custom, customIconBinary)
+                    mImageViewJobs.remove(imageView)
+                    setIconSuperDrawable(context, imageView, icon, tintColor, bitmap)
                 }
             }
         } catch (e: Exception) {
@@ -216,6 +299,55 @@ class IconDrawableFactory(
         }
     }
 
+    /**
+     * Set the icon in [imageView] without decode in the main thread, [customIconBitmap] is the result of a background decode,
+     * the standard icon is used if the custom icon is not available
+     */
+    private fun setIconSuperDrawable(
+        context: Context,
+        imageView: ImageView,
+        icon: IconImageDraw,
+        tintColor: Int,
+        customIconBitmap: Bitmap? = null,
+    ) {
+        val superDrawable = customIconBitmap?.let {
+            SuperDrawable(BitmapDrawable(context.resources, it))
+        } ?: getIconSuperDrawable(context,
+            icon,
+            imageView.width,
+            tintColor,
+            decodeCustomIcon = false)
+        imageView.setImageDrawable(superDrawable.drawable)
+        if (superDrawable.tintable) {
+            ImageViewCompat.setImageTintList(imageView,
+                ColorStateList.valueOf(tintColor))
+        } else {
+            ImageViewCompat.setImageTintList(imageView, null)
+        }
+    }
+
+    /**
+     * Stop waiting for the icon of [imageView], for example when the view is recycled,
+     * the decode is cancelled if no other view needs the icon
+     */
+    fun cancelDatabaseIcon(imageView: ImageView) {
+        mImageViewJobs.remove(imageView)?.cancel()
+    }
+
+    /**
+     * Decode in background the custom icons of [icons] not yet in the cache,
+     * to assign them without delay when they are displayed
+     */
+    fun prewarmDatabaseIcons(icons: List<IconImageDraw>) {
+        icons.forEach { icon ->
+            getCustomIconBinaryToDecode(icon)?.let { customIconBinary ->
+                mDecodeScope.launch {
+                    loadIconBitmap(icon.getIconImageToDraw().custom, customIconBinary)
+                }
+            }
+        }
+    }
+
     /**
      * Build a bitmap from a database [icon]
      */
@@ -243,32 +375,24 @@ class IconDrawableFactory(
         return null
     }
 
-    /**
-     * Simple method to init the cache with the custom icon and be much faster next time
-     */
-    private fun addToCustomCache(resources: Resources, iconDraw: IconImageDraw) {
-        val icon = iconDraw.getIconImageToDraw()
-        val customIconBinary = retrieveCustomIconBinary(icon.custom.uuid)
-        if (customIconBinary != null
-            && customIconBinary.dataExists()
-            && !customIconMap.containsKey(icon.custom.uuid)
-        )
-            getIconDrawable(resources, icon.custom, customIconBinary)
-    }
-
     /**
      * Clear a specific icon from the cache
      */
     fun clearFromCache(icon: IconImageCustom) {
-        customIconMap.remove(icon.uuid)
+        mCacheGeneration++
+        customIconCache.snapshot().keys.forEach { cacheKey ->
+            if (cacheKey.uuid == icon.uuid)
+                customIconCache.remove(cacheKey)
+        }
     }
 
     /**
      * Clear the cache of icons
      */
     fun clearCache() {
-        standardIconMap.clear()
-        customIconMap.clear()
+        mCacheGeneration++
+        standardIconCache.evictAll()
+        customIconCache.evictAll()
     }
 
     /**
@@ -327,9 +451,27 @@ class IconDrawableFactory(
         }
     }
 
+    /**
+     * Key class to retrieve a custom icon bitmap in the cache
+     */
+    private data class CustomCacheKey(
+        val uuid: UUID,
+        val size: Int,
+    )
+
+    /**
+     * Decode of a custom icon with the number of requests waiting for it
+     */
+    private class CustomIconDecode(val bitmap: Deferred<Bitmap?>) {
+        var waiting = 0
+    }
+
     companion object {
 
         private val TAG = IconDrawableFactory::class.java.name
+
+        private const val CUSTOM_ICON_CACHE_MEMORY_DIVISOR = 32
+        private const val STANDARD_ICON_CACHE_SIZE = 128
     }
 
 }
@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.services
 
 import android.app.PendingIntent
+import android.content.ComponentCallbacks2
 import android.content.Intent
 import android.net.Uri
 import android.os.Binder
@@ -81,8 +82,10 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.async
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
@@ -110,6 +113,13 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
     private var mActionRunning = 0
     private var mTaskRemovedRequested = false
     private var mSaveState = false
+    // Grouped save of the node actions waiting for the end of the delay
+    private var mScheduledSaveJob: Job? = null
+    // Number of node actions deferred, to know if a save includes all of them
+    private var mDeferredSaveCount = 0
+    // Save in background of the deferred node actions before a lock
+    private var mPendingSaveJob: Job? = null
+    private var mLockAfterPendingSave = false
 
     private var mProgressMessage: ProgressMessage = ProgressMessage(R.string.database_opened)
 
@@ -331,6 +341,19 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
                     || intent.action == ACTION_DATABASE_SAVE)
         } else false
 
+        // Group the saves of consecutive node actions,
+        // not with a hardware key which can't respond during a save in the current thread
+        if (mSaveState && isNodeAction(intent?.action) && !database.isHardwareKeyUsed()) {
+            val saveDelay = PreferencesUtil.getAutoSaveDelay(this)
+            if (saveDelay > 0) {
+                intent?.putExtra(SAVE_DATABASE_KEY, false)
+                mSaveState = false
+                scheduleSave(database, saveDelay)
+            }
+        }
+        // Deferred node actions saved by this action if it succeeds
+        val deferredSaveCount = mDeferredSaveCount
+
         // Create the notification
         buildNotification(intent)
 
@@ -431,6 +454,12 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
                                     SAVE_DATABASE_KEY,
                                     false
                                 ) == true)
+                                // The whole database is saved, the deferred node actions with it
+                                if (save && result.isSuccess
+                                    && intent?.hasExtra(DATABASE_URI_KEY) != true
+                                    && deferredSaveCount == mDeferredSaveCount) {
+                                    cancelScheduledSave()
+                                }
                                 // Save the database info after performing save action
                                 if (save) {
                                     database.fileUri?.let {
@@ -668,9 +697,131 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         updateMessage(R.string.decrypting_db)
     }
 
+    private fun isNodeAction(intentAction: String?): Boolean {
+        return when (intentAction) {
+            ACTION_DATABASE_CREATE_GROUP_TASK,
+            ACTION_DATABASE_UPDATE_GROUP_TASK,
+            ACTION_DATABASE_CREATE_ENTRY_TASK,
+            ACTION_DATABASE_UPDATE_ENTRY_TASK,
+            ACTION_DATABASE_COPY_NODES_TASK,
+            ACTION_DATABASE_MOVE_NODES_TASK,
+            ACTION_DATABASE_DELETE_NODES_TASK -> true
+            else -> false
+        }
+    }
+
+    /**
+     * Save the database after [saveDelay] milliseconds,
+     * the node actions performed in the meantime are saved at the same time,
+     * or before if the database is closed
+     */
+    private fun scheduleSave(database: ContextualDatabase, saveDelay: Long) {
+        mDeferredSaveCount++
+        database.pendingSave = {
+            savePendingNodeActions(database)
+        }
+        if (mScheduledSaveJob?.isActive == true)
+            return
+        mScheduledSaveJob = mainScope.launch {
+            delay(saveDelay)
+            // Don't save a database in the middle of an action
+            while (mActionRunning > 0) {
+                delay(SCHEDULED_SAVE_RETRY_DELAY)
+            }
+            mScheduledSaveJob = null
+            startScheduledSave()
+        }
+    }
+
+    /**
+     * Forget the deferred node actions, only when they are saved
+     */
+    private fun cancelScheduledSave() {
+        mScheduledSaveJob?.cancel()
+        mScheduledSaveJob = null
+        mDatabase?.pendingSave = null
+    }
+
+    /**
+     * Save now the node actions waiting for the end of the delay,
+     * they are kept as pending until the save succeeds
+     */
+    private fun flushScheduledSave() {
+        val scheduledSaveJob = mScheduledSaveJob ?: return
+        scheduledSaveJob.cancel()
+        mScheduledSaveJob = null
+        startScheduledSave()
+    }
+
+    private fun startScheduledSave() {
+        try {
+            startService(
+                Intent(applicationContext, DatabaseTaskNotificationService::class.java).apply {
+                    action = ACTION_DATABASE_SAVE
+                    putExtra(SAVE_DATABASE_KEY, true)
+                }
+            )
+        } catch (e: IllegalStateException) {
+            Log.e(TAG, "Cannot save the node actions", e)
+        }
+    }
+
+    /**
+     * Save in the current thread the deferred node actions, called in background before the database is closed
+     */
+    private fun savePendingNodeActions(database: ContextualDatabase) {
+        if (!database.loaded || database.isReadOnly)
+            return
+        val saveDatabaseRunnable = SaveDatabaseRunnable(
+            this,
+            database,
+            true,
+            null,
+            { hardwareKey, seed ->
+                retrieveResponseFromChallenge(hardwareKey, seed)
+            }
+        )
+        saveDatabaseRunnable.run()
+        val result = saveDatabaseRunnable.result
+        if (result.isSuccess) {
+            mLastLocalSaveTime = System.currentTimeMillis()
+            saveDatabaseInfo()
+        } else {
+            Log.e(TAG, "Unable to save the node actions before closing the database",
+                result.exception)
+        }
+    }
+
+    /**
+     * Save in background the deferred node actions, the database is locked after if requested
+     */
+    private fun savePendingModifications(database: ContextualDatabase) {
+        if (mPendingSaveJob?.isActive == true)
+            return
+        mScheduledSaveJob?.cancel()
+        mScheduledSaveJob = null
+        mPendingSaveJob = mainScope.launch {
+            withContext(Dispatchers.IO) {
+                database.savePendingModifications()
+            }
+            mPendingSaveJob = null
+            if (mLockAfterPendingSave) {
+                mLockAfterPendingSave = false
+                actionOnLock()
+            }
+        }
+    }
+
     override fun actionOnLock() {
         if (!TimeoutHelper.temporarilyDisableLock) {
-            closeDatabase(mDatabase)
+            // The deferred node actions are saved before the database is closed
+            val database = mDatabase
+            if (database != null && database.hasPendingModifications) {
+                mLockAfterPendingSave = true
+                savePendingModifications(database)
+                return
+            }
+            closeDatabase(database)
             // Remove the lock timer (no more needed if it exists)
             TimeoutHelper.cancelLockTimer(this)
             // Service is stopped after receive the broadcast
@@ -685,6 +836,33 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
         super.onTaskRemoved(rootIntent)
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        // The process can be killed in background, don't keep unsaved node actions
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            flushScheduledSave()
+        }
+    }
+
+    override fun onLowMemory() {
+        super.onLowMemory()
+        flushScheduledSave()
+    }
+
+    override fun onDestroy() {
+        // Don't lose the node actions waiting for the end of the delay, saved in background
+        mScheduledSaveJob?.cancel()
+        mScheduledSaveJob = null
+        mDatabase?.let { database ->
+            if (database.hasPendingModifications && mPendingSaveJob?.isActive != true) {
+                Thread({
+                    database.savePendingModifications()
+                }, "Save of the pending modifications").start()
+            }
+        }
+        super.onDestroy()
+    }
+
     private fun retrieveResponseFromChallenge(
         hardwareKey: HardwareKey,
         seed: ByteArray?,
@@ -1310,6 +1488,8 @@ open class DatabaseTaskNotificationService : LockNotificationService(), Progress
 
         private const val CHANNEL_DATABASE_ID = "com.kunzisoft.keepass.notification.channel.database"
 
+        private const val SCHEDULED_SAVE_RETRY_DELAY = 500L
+
         const val ACTION_DATABASE_CREATE_TASK = "ACTION_DATABASE_CREATE_TASK"
         const val ACTION_DATABASE_LOAD_TASK = "ACTION_DATABASE_LOAD_TASK"
         const val ACTION_DATABASE_MERGE_TASK = "ACTION_DATABASE_MERGE_TASK"
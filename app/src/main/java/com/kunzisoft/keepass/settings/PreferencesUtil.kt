@@ -479,6 +479,19 @@ object PreferencesUtil {
             context.resources.getBoolean(R.bool.enable_auto_save_database_default))
     }
 
+    /**
+     * Delay in milliseconds to group the saves of consecutive node actions, 0 to save each action
+     */
+    fun getAutoSaveDelay(context: Context): Long {
+        return try {
+            val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+            (prefs.getString(context.getString(R.string.auto_save_delay_key),
+                context.getString(R.string.auto_save_delay_default)) ?: "0").toLong()
+        } catch (e: NumberFormatException) {
+            0L
+        }
+    }
+
     fun isKeepScreenOnEnabled(context: Context): Boolean {
         val prefs = PreferenceManager.getDefaultSharedPreferences(context)
         return prefs.getBoolean(context.getString(R.string.enable_keep_screen_on_key),
@@ -491,6 +504,12 @@ object PreferencesUtil {
             context.resources.getBoolean(R.bool.enable_screenshot_mode_key_default))
     }
 
+    fun isPipelinedReadingEnabled(context: Context): Boolean {
+        val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+        return prefs.getBoolean(context.getString(R.string.enable_pipelined_reading_key),
+            context.resources.getBoolean(R.bool.enable_pipelined_reading_default))
+    }
+
     fun isAdvancedUnlockEnable(context: Context): Boolean {
         return isBiometricUnlockEnable(context) || isDeviceCredentialUnlockEnable(context)
     }
@@ -794,7 +813,9 @@ object PreferencesUtil {
                 context.getString(R.string.delete_entered_password_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.enable_read_only_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.enable_auto_save_database_key) -> editor.putBoolean(name, value.toBoolean())
+                context.getString(R.string.auto_save_delay_key) -> editor.putString(name, value.toLong().toString())
                 context.getString(R.string.enable_keep_screen_on_key) -> editor.putBoolean(name, value.toBoolean())
+                context.getString(R.string.enable_pipelined_reading_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.auto_focus_search_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.subdomain_search_key) -> editor.putBoolean(name, value.toBoolean())
                 context.getString(R.string.app_timeout_key) -> editor.putString(name, value.toLong().toString())
@@ -19,24 +19,89 @@
  */
 package com.kunzisoft.keepass.settings.preferencedialogfragment
 
+import android.app.ActivityManager
+import android.content.Context
 import android.os.Bundle
+import android.util.Log
 import android.view.View
 import android.widget.Toast
+import androidx.lifecycle.lifecycleScope
 import com.kunzisoft.keepass.R
 import com.kunzisoft.keepass.database.ContextualDatabase
+import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
+import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
 
 class DatabaseRoundsPreferenceDialogFragmentCompat : DatabaseSavePreferenceDialogFragmentCompat() {
 
+    private var mDatabase: ContextualDatabase? = null
+    private var mCalibrationRunning = false
+    // Memory and parallelism adapted to the device by the last calibration
+    private var mCalibratedParameters: KdfParameters? = null
+
     override fun onBindDialogView(view: View) {
         super.onBindDialogView(view)
         explanationText = getString(R.string.rounds_explanation)
+        setExplanationButton(R.string.rounds_calibration) {
+            calibrateRounds()
+        }
     }
 
     override fun onDatabaseRetrieved(database: ContextualDatabase?) {
         super.onDatabaseRetrieved(database)
+        mDatabase = database
         inputText = database?.numberKeyEncryptionRounds?.toString() ?: MIN_ITERATIONS.toString()
     }
 
+    /**
+     * Fill the input with the number of rounds lasting a second on this device,
+     * the memory and the parallelism are adapted to the device and applied with the rounds
+     */
+    private fun calibrateRounds() {
+        val database = mDatabase ?: return
+        if (mCalibrationRunning)
+            return
+        mCalibrationRunning = true
+        val memoryBudget = getCalibrationMemoryBudget(requireContext())
+        lifecycleScope.launch {
+            val kdfParameters = withContext(Dispatchers.Default) {
+                try {
+                    database.calibrateKdfParameters(CALIBRATION_DURATION, memoryBudget)
+                } catch (e: IOException) {
+                    Log.e(TAG, "Unable to calibrate the rounds", e)
+                    null
+                }
+            }
+            val kdfEngine = database.kdfEngine
+            if (kdfParameters != null && kdfEngine != null) {
+                mCalibratedParameters = kdfParameters
+                inputText = kdfEngine.getKeyRounds(kdfParameters).toString()
+            }
+            mCalibrationRunning = false
+        }
+    }
+
+    private fun applyCalibratedParameters(database: ContextualDatabase) {
+        val kdfParameters = mCalibratedParameters ?: return
+        val kdfEngine = database.kdfEngine ?: return
+        // Saved with the rounds
+        val oldMemoryUsage = database.memoryUsage
+        val newMemoryUsage = kdfEngine.getMemoryUsage(kdfParameters)
+        if (newMemoryUsage != KdfEngine.UNKNOWN_VALUE && newMemoryUsage != oldMemoryUsage) {
+            database.memoryUsage = newMemoryUsage
+            saveMemoryUsage(oldMemoryUsage, newMemoryUsage, false)
+        }
+        val oldParallelism = database.parallelism
+        val newParallelism = kdfEngine.getParallelism(kdfParameters)
+        if (newParallelism != KdfEngine.UNKNOWN_VALUE && newParallelism != oldParallelism) {
+            database.parallelism = newParallelism
+            saveParallelism(oldParallelism, newParallelism, false)
+        }
+    }
+
     override fun onDialogClosed(database: ContextualDatabase?, positiveResult: Boolean) {
         if (positiveResult) {
             database?.let {
@@ -50,6 +115,7 @@ class DatabaseRoundsPreferenceDialogFragmentCompat : DatabaseSavePreferenceDialo
                 }
                 // TODO Max iterations
 
+                applyCalibratedParameters(database)
                 val oldRounds = database.numberKeyEncryptionRounds
                 try {
                     database.numberKeyEncryptionRounds = rounds
@@ -65,7 +131,20 @@ class DatabaseRoundsPreferenceDialogFragmentCompat : DatabaseSavePreferenceDialo
 
     companion object {
 
+        private val TAG = DatabaseRoundsPreferenceDialogFragmentCompat::class.java.name
+
         const val MIN_ITERATIONS = 1L
+        private const val CALIBRATION_DURATION = 1000L
+
+        /**
+         * Memory allowed to a key derivation function calibrated on this device,
+         * a quarter of the memory class, 64 MiB for a device with a memory class of 256 MiB
+         */
+        private fun getCalibrationMemoryBudget(context: Context): Long {
+            val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as? ActivityManager?
+            val memoryClass = activityManager?.memoryClass ?: return KdfEngine.UNKNOWN_VALUE
+            return memoryClass * 1024L * 1024L / 4
+        }
 
         fun newInstance(key: String): DatabaseRoundsPreferenceDialogFragmentCompat {
             val fragment = DatabaseRoundsPreferenceDialogFragmentCompat()
@@ -146,13 +146,15 @@ abstract class DatabaseSavePreferenceDialogFragmentCompat
     }
 
     protected fun saveMemoryUsage(oldNumber: Long,
-                                  newNumber: Long) {
-        mDatabaseViewModel.saveMemoryUsage(oldNumber, newNumber, mDatabaseAutoSaveEnable)
+                                  newNumber: Long,
+                                  save: Boolean = mDatabaseAutoSaveEnable) {
+        mDatabaseViewModel.saveMemoryUsage(oldNumber, newNumber, save)
     }
 
     protected fun saveParallelism(oldNumber: Long,
-                                  newNumber: Long) {
-        mDatabaseViewModel.saveParallelism(oldNumber, newNumber, mDatabaseAutoSaveEnable)
+                                  newNumber: Long,
+                                  save: Boolean = mDatabaseAutoSaveEnable) {
+        mDatabaseViewModel.saveParallelism(oldNumber, newNumber, save)
     }
 
     protected fun saveIterations(oldNumber: Long,
@@ -161,8 +161,10 @@ fun Context.closeDatabase(database: ContextualDatabase?) {
     (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager?)?.apply {
         cancelAll()
     }
-    // Clear data
-    database?.clearAndClose(this.getBinaryDir())
+    // Clear data, except if the database task service must first save the deferred modifications,
+    // the service closes the database after this save
+    if (database?.hasPendingModifications != true)
+        database?.clearAndClose(this.getBinaryDir())
 
     // Release not useful URI permission
     applicationContext.releaseAllUnnecessaryPermissionUris()
@@ -1,6 +1,7 @@
 package com.kunzisoft.keepass.utils
 
 import android.content.Context
+import android.util.LruCache
 import com.kunzisoft.keepass.model.SearchInfo
 import com.kunzisoft.keepass.settings.PreferencesUtil
 import kotlinx.coroutines.CoroutineScope
@@ -10,6 +11,31 @@ import mozilla.components.lib.publicsuffixlist.PublicSuffixList
 
 object WebDomain {
 
+    private const val CONCRETE_WEB_DOMAIN_CACHE_SIZE = 64
+    // Marker of a web domain without public suffix plus one, LruCache doesn't accept null
+    private const val NO_CONCRETE_WEB_DOMAIN = ""
+
+    private var publicSuffixList: PublicSuffixList? = null
+    private val concreteWebDomainCache = LruCache<String, String>(CONCRETE_WEB_DOMAIN_CACHE_SIZE)
+
+    /**
+     * Retrieve the public suffix list shared by the process
+     */
+    private fun getPublicSuffixList(context: Context): PublicSuffixList {
+        synchronized(WebDomain::class.java) {
+            return publicSuffixList ?: PublicSuffixList(context.applicationContext).also {
+                publicSuffixList = it
+            }
+        }
+    }
+
+    /**
+     * Load the public suffix list in background so that the first request is not delayed
+     */
+    fun preload(context: Context) {
+        getPublicSuffixList(context).prefetch()
+    }
+
     /**
      * Get the concrete web domain AKA without sub domain if needed
      */
@@ -23,13 +49,19 @@ object WebDomain {
                     || Regex(SearchInfo.WEB_IP_REGEX).matches(webDomain)) {
                     concreteWebDomain.invoke(webDomain)
                 } else {
-                    val publicSuffixList = PublicSuffixList(context)
-                    concreteWebDomain.invoke(publicSuffixList
-                        .getPublicSuffixPlusOne(webDomain).await())
+                    val cachedWebDomain = concreteWebDomainCache.get(webDomain)
+                        ?: (getPublicSuffixList(context)
+                            .getPublicSuffixPlusOne(webDomain).await()
+                            ?: NO_CONCRETE_WEB_DOMAIN).also {
+                            concreteWebDomainCache.put(webDomain, it)
+                        }
+                    concreteWebDomain.invoke(
+                        if (cachedWebDomain == NO_CONCRETE_WEB_DOMAIN) null else cachedWebDomain
+                    )
                 }
             } else {
                 concreteWebDomain.invoke(null)
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -6,13 +6,15 @@ package mozilla.components.lib.publicsuffixlist
 
 import mozilla.components.lib.publicsuffixlist.ext.binarySearch
 import java.net.IDN
+import java.nio.ByteBuffer
 
 /**
  * Class wrapping the public suffix list data and offering methods for accessing rules in it.
+ * The rules may be backed by a memory-mapped region of the asset.
  */
 internal class PublicSuffixListData(
-    private val rules: ByteArray,
-    private val exceptions: ByteArray
+    private val rules: ByteBuffer,
+    private val exceptions: ByteBuffer
 ) {
     private fun binarySearchRules(labels: List<ByteArray>, labelIndex: Int): String? {
         return rules.binarySearch(labels, labelIndex)
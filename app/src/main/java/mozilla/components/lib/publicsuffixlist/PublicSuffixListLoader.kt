@@ -6,12 +6,48 @@ package mozilla.components.lib.publicsuffixlist
 
 import android.content.Context
 import java.io.BufferedInputStream
+import java.io.FileInputStream
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 
 private const val PUBLIC_SUFFIX_LIST_FILE = "publicsuffixes"
 
 internal object PublicSuffixListLoader {
-    fun load(context: Context): PublicSuffixListData = context.assets.open(
+    fun load(context: Context): PublicSuffixListData = try {
+        map(context)
+    } catch (e: IOException) {
+        // The asset is compressed in the package and can't be mapped, read it in memory
+        read(context)
+    }
+
+    /**
+     * Map the rules directly from the package, the asset must be stored uncompressed.
+     */
+    private fun map(context: Context): PublicSuffixListData {
+        val fileDescriptor = context.assets.openFd(PUBLIC_SUFFIX_LIST_FILE)
+        // AssetFileDescriptor is only Closeable since API 19, it owns the descriptor of the channel
+        try {
+            val channel = FileInputStream(fileDescriptor.fileDescriptor).channel
+            // The mapping stays valid once the descriptor is closed
+            val buffer = channel.map(
+                FileChannel.MapMode.READ_ONLY,
+                fileDescriptor.startOffset,
+                fileDescriptor.declaredLength
+            )
+            val publicSuffixSize = buffer.int
+            val publicSuffixBytes = buffer.sliceOf(publicSuffixSize)
+
+            val exceptionSize = buffer.int
+            val exceptionBytes = buffer.sliceOf(exceptionSize)
+
+            return PublicSuffixListData(publicSuffixBytes, exceptionBytes)
+        } finally {
+            fileDescriptor.close()
+        }
+    }
+
+    private fun read(context: Context): PublicSuffixListData = context.assets.open(
         PUBLIC_SUFFIX_LIST_FILE
     ).buffered().use { stream ->
         val publicSuffixSize = stream.readInt()
@@ -20,8 +56,21 @@ internal object PublicSuffixListLoader {
         val exceptionSize = stream.readInt()
         val exceptionBytes = stream.readFully(exceptionSize)
 
-        PublicSuffixListData(publicSuffixBytes, exceptionBytes)
+        PublicSuffixListData(ByteBuffer.wrap(publicSuffixBytes), ByteBuffer.wrap(exceptionBytes))
+    }
+}
+
+/**
+ * Returns a view of the next [size] bytes and moves the position after them.
+ */
+private fun ByteBuffer.sliceOf(size: Int): ByteBuffer {
+    if (remaining() < size) {
+        throw IOException("Unexpected end of buffer")
     }
+    val view = duplicate()
+    view.limit(view.position() + size)
+    position(position() + size)
+    return view.slice()
 }
 
 @Suppress("MagicNumber")
@@ -4,20 +4,22 @@
 
 package mozilla.components.lib.publicsuffixlist.ext
 
+import java.nio.ByteBuffer
 import kotlin.experimental.and
 
 private const val BITMASK = 0xff.toByte()
 
 /**
- * Performs a binary search for the provided [labels] on the [ByteArray]'s data.
+ * Performs a binary search for the provided [labels] on the [ByteBuffer]'s data.
+ * Only absolute reads are used, so the buffer can be shared between threads.
  *
  * This algorithm is based on OkHttp's PublicSuffixDatabase class:
  * https://github.com/square/okhttp/blob/master/okhttp/src/main/java/okhttp3/internal/publicsuffix/PublicSuffixDatabase.java
  */
 @Suppress("ComplexMethod", "NestedBlockDepth")
-internal fun ByteArray.binarySearch(labels: List<ByteArray>, labelIndex: Int): String? {
+internal fun ByteBuffer.binarySearch(labels: List<ByteArray>, labelIndex: Int): String? {
     var low = 0
-    var high = size
+    var high = limit()
     var match: String? = null
 
     while (low < high) {
@@ -41,7 +43,7 @@ internal fun ByteArray.binarySearch(labels: List<ByteArray>, labelIndex: Int): S
                 labels[currentLabelIndex][currentLabelByteIndex] and BITMASK
             }
 
-            val byte1 = this[start + publicSuffixByteIndex] and BITMASK
+            val byte1 = get(start + publicSuffixByteIndex) and BITMASK
 
             // Compare the bytes. Note that the file stores UTF-8 encoded bytes, so we must compare the
             // unsigned bytes.
@@ -89,7 +91,11 @@ internal fun ByteArray.binarySearch(labels: List<ByteArray>, labelIndex: Int): S
                 low = start + end + 1
             } else {
                 // Found a match.
-                match = String(this, start, publicSuffixLength, Charsets.UTF_8)
+                val matchBytes = ByteArray(publicSuffixLength)
+                for (i in 0 until publicSuffixLength) {
+                    matchBytes[i] = get(start + i)
+                }
+                match = String(matchBytes, Charsets.UTF_8)
                 break
             }
         }
@@ -99,11 +105,11 @@ internal fun ByteArray.binarySearch(labels: List<ByteArray>, labelIndex: Int): S
 }
 
 /**
- * Search for a '\n' that marks the start of a value. Don't go back past the start of the array.
+ * Search for a '\n' that marks the start of a value. Don't go back past the start of the buffer.
  */
-private fun ByteArray.findStartOfLineFromIndex(start: Int): Int {
+private fun ByteBuffer.findStartOfLineFromIndex(start: Int): Int {
     var index = start
-    while (index > -1 && this[index] != '\n'.code.toByte()) {
+    while (index > -1 && get(index) != '\n'.code.toByte()) {
         index--
     }
     index++
@@ -113,9 +119,9 @@ private fun ByteArray.findStartOfLineFromIndex(start: Int): Int {
 /**
  * Search for a '\n' that marks the end of a value.
  */
-private fun ByteArray.findEndOfLineFromIndex(start: Int): Int {
+private fun ByteBuffer.findEndOfLineFromIndex(start: Int): Int {
     var end = 1
-    while (this[start + end] != '\n'.code.toByte()) {
+    while (get(start + end) != '\n'.code.toByte()) {
         end++
     }
     return end
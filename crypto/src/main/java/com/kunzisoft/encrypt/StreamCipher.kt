@@ -35,4 +35,14 @@ class StreamCipher(private val streamCipher: org.bouncycastle.crypto.StreamCiphe
         streamCipher.processBytes(data, 0, size, out, 0)
         return out
     }
+
+    /**
+     * process [length] bytes from [data] starting at [offset] putting the result into [output].
+     *
+     * @exception DataLengthException if the output buffer is too small.
+     */
+    @Throws(DataLengthException::class)
+    fun processBytes(data: ByteArray, offset: Int, length: Int, output: ByteArray) {
+        streamCipher.processBytes(data, offset, length, output, 0)
+    }
 }
\ No newline at end of file
@@ -24,7 +24,9 @@ import android.util.Log
 import com.kunzisoft.encrypt.HashManager
 import com.kunzisoft.encrypt.NativeLib
 import java.io.IOException
+import java.io.InterruptedIOException
 import java.security.InvalidKeyException
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.crypto.Cipher
 import javax.crypto.ShortBufferException
 import javax.crypto.spec.SecretKeySpec
@@ -32,52 +34,148 @@ import javax.crypto.spec.SecretKeySpec
 object AESTransformer {
 
     fun transformKey(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray? {
-        // Prefer the native final key implementation
-        return try {
-            NativeLib.init()
-            NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!)
-        } catch (exception: Exception) {
-            Log.e(AESTransformer::class.java.simpleName, "Unable to perform native AES key transformation", exception)
-            // Fall back on the android crypto implementation
-            transformKeyInJVM(seed, key, rounds)
+        // Prefer the native final key implementation, if the library can be loaded
+        if (NativeLib.init()) {
+            try {
+                return NativeAESKeyTransformer.nTransformKey(seed, key, rounds!!)
+            } catch (exception: Exception) {
+                Log.e(AESTransformer::class.java.simpleName, "Unable to perform native AES key transformation", exception)
+            }
         }
+        // Fall back on the android crypto implementation
+        return transformKeyInJVM(seed, key, rounds)
     }
 
-    @SuppressLint("GetInstance")
     @Throws(IOException::class)
     fun transformKeyInJVM(seed: ByteArray?, key: ByteArray?, rounds: Long?): ByteArray {
-        val cipher: Cipher = try {
-            Cipher.getInstance("AES/ECB/NoPadding")
-        } catch (e: Exception) {
-            throw IOException("Unable to get the cipher", e)
-        }
-        try {
-            cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(seed, "AES"))
-        } catch (e: InvalidKeyException) {
-            throw IOException("Unable to init the cipher", e)
+        if (seed == null) {
+            throw IOException("Invalid seed")
         }
-        if (key == null) {
+        if (key == null || key.isEmpty() || key.size % BLOCK_SIZE != 0) {
             throw IOException("Invalid key")
         }
         if (rounds == null) {
             throw IOException("Invalid rounds")
         }
 
-        // Encrypt key rounds times
-        val keyLength = key.size
-        val newKey = ByteArray(keyLength)
-        System.arraycopy(key, 0, newKey, 0, keyLength)
-        val destKey = ByteArray(keyLength)
-        for (i in 0 until rounds) {
+        // Each block of the key is encrypted independently in ECB, like the native implementation,
+        // the first block by the current thread and the others by dedicated threads
+        val cancelled = AtomicBoolean(false)
+        val blockTransformers = List(key.size / BLOCK_SIZE) { index ->
+            BlockTransformer(seed, key, index * BLOCK_SIZE, rounds, cancelled)
+        }
+        val threads = blockTransformers.drop(1).map { blockTransformer ->
+            Thread(blockTransformer, "AES key transformation").apply {
+                // Don't keep the process alive for a transformation no longer awaited
+                isDaemon = true
+                start()
+            }
+        }
+        val newKey = ByteArray(key.size)
+        try {
+            blockTransformers[0].run()
+            threads.forEach { it.join() }
+            blockTransformers.forEach { blockTransformer ->
+                blockTransformer.error?.let { throw it }
+                System.arraycopy(blockTransformer.result, 0,
+                        newKey, blockTransformer.offset, BLOCK_SIZE)
+            }
+            // Hash the key
+            return HashManager.hashSha256(newKey)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("AES key transformation interrupted")
+        } finally {
+            // Stop the other threads if the transformation failed, and wait for them before the wipe
+            cancelled.set(true)
+            joinUninterruptibly(threads)
+            blockTransformers.forEach { it.result.fill(0) }
+            newKey.fill(0)
+        }
+    }
+
+    private fun joinUninterruptibly(threads: List<Thread>) {
+        var interrupted = false
+        threads.forEach { thread ->
+            while (thread.isAlive) {
+                try {
+                    thread.join()
+                } catch (e: InterruptedException) {
+                    interrupted = true
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    /**
+     * Encrypt [rounds] times the block of [key] at [offset],
+     * stop if [cancelled] is set or if the thread is interrupted
+     */
+    private class BlockTransformer(private val seed: ByteArray,
+                                   key: ByteArray,
+                                   val offset: Int,
+                                   private val rounds: Long,
+                                   private val cancelled: AtomicBoolean) : Runnable {
+
+        val result = key.copyOfRange(offset, offset + BLOCK_SIZE)
+        var error: IOException? = null
+            private set
+
+        @SuppressLint("GetInstance")
+        override fun run() {
+            // The cipher is not thread safe, one by block
+            val cipher: Cipher = try {
+                Cipher.getInstance("AES/ECB/NoPadding").apply {
+                    init(Cipher.ENCRYPT_MODE, SecretKeySpec(seed, "AES"))
+                }
+            } catch (e: InvalidKeyException) {
+                cancel(IOException("Unable to init the cipher", e))
+                return
+            } catch (e: Exception) {
+                cancel(IOException("Unable to get the cipher", e))
+                return
+            }
+
+            // Swap the buffers between rounds instead of copying
+            var source = result
+            var destination = ByteArray(BLOCK_SIZE)
             try {
-                cipher.update(newKey, 0, newKey.size, destKey, 0)
-                System.arraycopy(destKey, 0, newKey, 0, newKey.size)
+                var round = 0L
+                while (round < rounds) {
+                    cipher.update(source, 0, BLOCK_SIZE, destination, 0)
+                    val swap = source
+                    source = destination
+                    destination = swap
+                    round++
+                    if ((round and CANCELLATION_CHECK_MASK) == 0L
+                            && (cancelled.get() || Thread.currentThread().isInterrupted)) {
+                        cancel(InterruptedIOException("AES key transformation cancelled"))
+                        return
+                    }
+                }
             } catch (e: ShortBufferException) {
-                throw IOException("Short buffer", e)
+                cancel(IOException("Short buffer", e))
+                return
+            }
+            // The intermediate buffer is wiped, result keeps the last block
+            if (source === result) {
+                destination.fill(0)
+            } else {
+                System.arraycopy(source, 0, result, 0, BLOCK_SIZE)
+                source.fill(0)
             }
         }
 
-        // Hash the key
-        return HashManager.hashSha256(newKey)
+        private fun cancel(exception: IOException) {
+            error = exception
+            cancelled.set(true)
+        }
     }
-}
\ No newline at end of file
+
+    private const val BLOCK_SIZE = 16
+    // Check the cancellation every 4096 rounds
+    private const val CANCELLATION_CHECK_MASK = 4095L
+}
@@ -26,6 +26,7 @@ import com.kunzisoft.encrypt.NativeLib;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -301,4 +302,37 @@ public class NativeAESCipherSpi extends CipherSpi {
 
     private native int nUpdate(long ctxPtr, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset, int outputSize);
 
+    @Override
+    protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+        if (!input.isDirect() || !output.isDirect()) {
+            return super.engineUpdate(input, output);
+        }
+        // Direct buffers are crypted in place, without copy through the Java heap
+        int inputLen = input.remaining();
+        if (inputLen == 0) {
+            return 0;
+        }
+        if (output.remaining() < getUpdateOutputSize(inputLen)) {
+            throw new ShortBufferException("Insufficient buffer.");
+        }
+        int result = nUpdateDirect(mCtxPtr, input, input.position(), inputLen,
+                output, output.position(), output.remaining());
+        input.position(input.limit());
+        output.position(output.position() + result);
+        return result;
+    }
+
+    /**
+     * Exact size of the output of an update, the last block is kept in the cache for the padding
+     */
+    private int getUpdateOutputSize(int inputLen) {
+        int cryptLen = inputLen + nGetCacheSize(mCtxPtr);
+        if (cryptLen < 2 * AES_BLOCK_SIZE) {
+            return 0;
+        }
+        return cryptLen - (cryptLen % AES_BLOCK_SIZE) - AES_BLOCK_SIZE;
+    }
+
+    private native int nUpdateDirect(long ctxPtr, ByteBuffer input, int inputOffset, int inputLen, ByteBuffer output, int outputOffset, int outputSize);
+
 }
\ No newline at end of file
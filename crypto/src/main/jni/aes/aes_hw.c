@@ -0,0 +1,222 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+#include "aes_hw.h"
+
+#if defined(__x86_64__) || defined(__i386__)
+
+/* This file is compiled with -maes, functions are only called if aes_hw_available() */
+#include <cpuid.h>
+#include <emmintrin.h>
+#include <wmmintrin.h>
+
+int aes_hw_available(void) {
+  unsigned int eax, ebx, ecx, edx;
+  if( !__get_cpuid(1, &eax, &ebx, &ecx, &edx) )
+    return 0;
+  return (ecx & bit_AES) != 0 && (edx & bit_SSE2) != 0;
+}
+
+#define LOAD(p) _mm_loadu_si128((const __m128i *)(p))
+#define STORE(p, v) _mm_storeu_si128((__m128i *)(p), (v))
+
+void aes_hw_decrypt_keys(const uint8_t *enc_keys, int rounds, uint8_t *dec_keys) {
+  int i;
+  STORE(dec_keys, LOAD(enc_keys + 16 * rounds));
+  for( i = 1; i < rounds; i++ )
+    STORE(dec_keys + 16 * i, _mm_aesimc_si128(LOAD(enc_keys + 16 * (rounds - i))));
+  STORE(dec_keys + 16 * rounds, LOAD(enc_keys));
+}
+
+void aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *enc_keys, int rounds) {
+  int r;
+  __m128i state, keys[AES_HW_MAX_ROUNDS + 1];
+  __m128i chain = LOAD(iv);
+
+  for( r = 0; r <= rounds; r++ )
+    keys[r] = LOAD(enc_keys + 16 * r);
+
+  while( nb-- ) {
+    state = _mm_xor_si128(_mm_xor_si128(LOAD(in), chain), keys[0]);
+    for( r = 1; r < rounds; r++ )
+      state = _mm_aesenc_si128(state, keys[r]);
+    chain = _mm_aesenclast_si128(state, keys[rounds]);
+    STORE(out, chain);
+    in += 16;
+    out += 16;
+  }
+  STORE(iv, chain);
+}
+
+void aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *dec_keys, int rounds) {
+  int r;
+  __m128i c0, c1, c2, c3, s0, s1, s2, s3, keys[AES_HW_MAX_ROUNDS + 1];
+  __m128i chain = LOAD(iv);
+
+  for( r = 0; r <= rounds; r++ )
+    keys[r] = LOAD(dec_keys + 16 * r);
+
+  // Blocks are independent in decryption, interleave 4 of them to fill the pipeline
+  while( nb >= 4 ) {
+    c0 = LOAD(in);
+    c1 = LOAD(in + 16);
+    c2 = LOAD(in + 32);
+    c3 = LOAD(in + 48);
+    s0 = _mm_xor_si128(c0, keys[0]);
+    s1 = _mm_xor_si128(c1, keys[0]);
+    s2 = _mm_xor_si128(c2, keys[0]);
+    s3 = _mm_xor_si128(c3, keys[0]);
+    for( r = 1; r < rounds; r++ ) {
+      s0 = _mm_aesdec_si128(s0, keys[r]);
+      s1 = _mm_aesdec_si128(s1, keys[r]);
+      s2 = _mm_aesdec_si128(s2, keys[r]);
+      s3 = _mm_aesdec_si128(s3, keys[r]);
+    }
+    s0 = _mm_aesdeclast_si128(s0, keys[rounds]);
+    s1 = _mm_aesdeclast_si128(s1, keys[rounds]);
+    s2 = _mm_aesdeclast_si128(s2, keys[rounds]);
+    s3 = _mm_aesdeclast_si128(s3, keys[rounds]);
+    STORE(out, _mm_xor_si128(s0, chain));
+    STORE(out + 16, _mm_xor_si128(s1, c0));
+    STORE(out + 32, _mm_xor_si128(s2, c1));
+    STORE(out + 48, _mm_xor_si128(s3, c2));
+    chain = c3;
+    in += 64;
+    out += 64;
+    nb -= 4;
+  }
+  while( nb-- ) {
+    c0 = LOAD(in);
+    s0 = _mm_xor_si128(c0, keys[0]);
+    for( r = 1; r < rounds; r++ )
+      s0 = _mm_aesdec_si128(s0, keys[r]);
+    s0 = _mm_aesdeclast_si128(s0, keys[rounds]);
+    STORE(out, _mm_xor_si128(s0, chain));
+    chain = c0;
+    in += 16;
+    out += 16;
+  }
+  STORE(iv, chain);
+}
+
+#elif defined(__aarch64__)
+
+/* This file is compiled with +crypto, functions are only called if aes_hw_available() */
+#include <arm_neon.h>
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+
+int aes_hw_available(void) {
+  return (getauxval(AT_HWCAP) & HWCAP_AES) != 0;
+}
+
+void aes_hw_decrypt_keys(const uint8_t *enc_keys, int rounds, uint8_t *dec_keys) {
+  int i;
+  vst1q_u8(dec_keys, vld1q_u8(enc_keys + 16 * rounds));
+  for( i = 1; i < rounds; i++ )
+    vst1q_u8(dec_keys + 16 * i, vaesimcq_u8(vld1q_u8(enc_keys + 16 * (rounds - i))));
+  vst1q_u8(dec_keys + 16 * rounds, vld1q_u8(enc_keys));
+}
+
+void aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *enc_keys, int rounds) {
+  int r;
+  uint8x16_t state, keys[AES_HW_MAX_ROUNDS + 1];
+  uint8x16_t chain = vld1q_u8(iv);
+
+  for( r = 0; r <= rounds; r++ )
+    keys[r] = vld1q_u8(enc_keys + 16 * r);
+
+  while( nb-- ) {
+    state = veorq_u8(vld1q_u8(in), chain);
+    for( r = 0; r < rounds - 1; r++ )
+      state = vaesmcq_u8(vaeseq_u8(state, keys[r]));
+    chain = veorq_u8(vaeseq_u8(state, keys[rounds - 1]), keys[rounds]);
+    vst1q_u8(out, chain);
+    in += 16;
+    out += 16;
+  }
+  vst1q_u8(iv, chain);
+}
+
+void aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *dec_keys, int rounds) {
+  int r;
+  uint8x16_t c0, c1, c2, c3, s0, s1, s2, s3, keys[AES_HW_MAX_ROUNDS + 1];
+  uint8x16_t chain = vld1q_u8(iv);
+
+  for( r = 0; r <= rounds; r++ )
+    keys[r] = vld1q_u8(dec_keys + 16 * r);
+
+  // Blocks are independent in decryption, interleave 4 of them to fill the pipeline
+  while( nb >= 4 ) {
+    s0 = c0 = vld1q_u8(in);
+    s1 = c1 = vld1q_u8(in + 16);
+    s2 = c2 = vld1q_u8(in + 32);
+    s3 = c3 = vld1q_u8(in + 48);
+    for( r = 0; r < rounds - 1; r++ ) {
+      s0 = vaesimcq_u8(vaesdq_u8(s0, keys[r]));
+      s1 = vaesimcq_u8(vaesdq_u8(s1, keys[r]));
+      s2 = vaesimcq_u8(vaesdq_u8(s2, keys[r]));
+      s3 = vaesimcq_u8(vaesdq_u8(s3, keys[r]));
+    }
+    s0 = veorq_u8(vaesdq_u8(s0, keys[rounds - 1]), keys[rounds]);
+    s1 = veorq_u8(vaesdq_u8(s1, keys[rounds - 1]), keys[rounds]);
+    s2 = veorq_u8(vaesdq_u8(s2, keys[rounds - 1]), keys[rounds]);
+    s3 = veorq_u8(vaesdq_u8(s3, keys[rounds - 1]), keys[rounds]);
+    vst1q_u8(out, veorq_u8(s0, chain));
+    vst1q_u8(out + 16, veorq_u8(s1, c0));
+    vst1q_u8(out + 32, veorq_u8(s2, c1));
+    vst1q_u8(out + 48, veorq_u8(s3, c2));
+    chain = c3;
+    in += 64;
+    out += 64;
+    nb -= 4;
+  }
+  while( nb-- ) {
+    s0 = c0 = vld1q_u8(in);
+    for( r = 0; r < rounds - 1; r++ )
+      s0 = vaesimcq_u8(vaesdq_u8(s0, keys[r]));
+    s0 = veorq_u8(vaesdq_u8(s0, keys[rounds - 1]), keys[rounds]);
+    vst1q_u8(out, veorq_u8(s0, chain));
+    chain = c0;
+    in += 16;
+    out += 16;
+  }
+  vst1q_u8(iv, chain);
+}
+
+#else
+
+int aes_hw_available(void) {
+  return 0;
+}
+
+void aes_hw_decrypt_keys(const uint8_t *enc_keys, int rounds, uint8_t *dec_keys) {}
+
+void aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *enc_keys, int rounds) {}
+
+void aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *dec_keys, int rounds) {}
+
+#endif
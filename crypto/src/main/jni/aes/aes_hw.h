@@ -0,0 +1,47 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+  AES with the instructions of the CPU (AES-NI on x86, Cryptography Extensions on ARMv8).
+  The round keys are the standard expanded keys, which is the layout of the encryption
+  key schedule of aes.h, so they can be shared with the table based implementation.
+*/
+
+#ifndef _AES_HW_H
+#define _AES_HW_H
+
+#include <stdint.h>
+
+#define AES_HW_MAX_ROUNDS 14
+#define AES_HW_KEYS_SIZE ((AES_HW_MAX_ROUNDS + 1) * 16)
+
+/* Return 1 if the AES instructions can be used on this CPU */
+int aes_hw_available(void);
+
+/* Build the round keys of the equivalent inverse cipher from the encryption round keys */
+void aes_hw_decrypt_keys(const uint8_t *enc_keys, int rounds, uint8_t *dec_keys);
+
+/* CBC on nb blocks, iv is updated with the last ciphertext block, in and out can be the same buffer */
+void aes_hw_cbc_encrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *enc_keys, int rounds);
+void aes_hw_cbc_decrypt(const uint8_t *in, uint8_t *out, uint32_t nb, uint8_t *iv,
+                        const uint8_t *dec_keys, int rounds);
+
+#endif
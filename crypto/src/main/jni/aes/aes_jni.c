@@ -21,6 +21,7 @@
 #include <inttypes.h>
 #include <string.h>
 #include <pthread.h>
+#include <unistd.h>
 #include <jni.h>
 
 /* Tune as desired */
@@ -36,6 +37,7 @@
 #endif
 
 #include "aes.h"
+#include "aes_hw.h"
 #include "sha2.h"
 
 static JavaVM *cached_vm;
@@ -50,13 +52,31 @@ typedef enum {
 #define AES_BLOCK_SIZE 16
 #define CACHE_SIZE 32
 
+// CBC decryption is split between threads above this size, each thread decrypts at least this size
+#define PARALLEL_SEGMENT_SIZE (64 * 1024)
+#define MAX_PARALLEL_SEGMENTS 4
+
+// Maximum input processed by each step of an update of a Java array, copied in the buffer of the state
+#define UPDATE_CHUNK_SIZE (1024 * 1024)
+
+// Return values of update_state()
+#define UPDATE_SHORT_BUFFER -1
+#define UPDATE_CRYPT_FAILURE -2
+
 typedef struct _aes_state {
   edir_t direction;
   uint32_t cache_len;
   uint8_t iv[16], cache[CACHE_SIZE];
   uint8_t ctx[sizeof(aes_encrypt_ctx)]; // 244
+  int hw_rounds; // 0 if the CPU instructions are not used
+  uint8_t hw_keys[AES_HW_KEYS_SIZE] __attribute__ ((aligned (16)));
+  uint8_t *buffer; // reused by the updates which need a copy, grown to the input size
+  uint32_t buffer_size;
 } aes_state;
 
+static int cpu_count = 1;
+static int hw_available = 0;
+
 #define ENC_CTX(state) (((aes_encrypt_ctx *)((state)->ctx)))
 #define DEC_CTX(state) (((aes_decrypt_ctx *)((state)->ctx)))
 #define ALIGN_EXTRA 15
@@ -100,6 +120,10 @@ JNIEXPORT jint JNICALL JNI_OnLoad( JavaVM *vm, void *reserved ) {
   block_size = (*env)->NewGlobalRef(env, cls);
 
   aes_init();
+  hw_available = aes_hw_available();
+  cpu_count = (int)sysconf(_SC_NPROCESSORS_ONLN);
+  if( cpu_count < 1 )
+    cpu_count = 1;
 
   return JNI_VERSION_1_6;
 }
@@ -142,18 +166,300 @@ JNIEXPORT jlong JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nInit(
   if( encrypting ) {
     state->direction = ENCRYPTION;
     aes_encrypt_key(ckey, key_len, ENC_CTX(state));
+    if( hw_available ) {
+      // The encryption key schedule holds the standard round keys
+      state->hw_rounds = ENC_CTX(state)->inf.b[0] >> 4;
+      memcpy(state->hw_keys, ENC_CTX(state)->ks, (state->hw_rounds + 1) * AES_BLOCK_SIZE);
+    }
   } else {
     state->direction = DECRYPTION;
     aes_decrypt_key(ckey, key_len, DEC_CTX(state));
+    if( hw_available ) {
+      aes_encrypt_ctx e_ctx[1] __attribute__ ((aligned (16)));
+      aes_encrypt_key(ckey, key_len, e_ctx);
+      state->hw_rounds = e_ctx->inf.b[0] >> 4;
+      aes_hw_decrypt_keys((uint8_t *)e_ctx->ks, state->hw_rounds, state->hw_keys);
+      memset(e_ctx, 0, sizeof(aes_encrypt_ctx));
+    }
   }
+  memset(ckey, 0, sizeof(ckey));
 
   return (jlong)state;
 }
 
 JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nCleanup(JNIEnv *env, jclass this, jlong state) {
+  aes_state *c_state = (aes_state *)state;
+  if( c_state->buffer != NULL ) {
+    memset(c_state->buffer, 0, c_state->buffer_size);
+    free(c_state->buffer);
+  }
+  memset((void *)state, 0, sizeof(aes_state));
   free((void *)state);
 }
 
+/*
+  CBC on a contiguous run of blocks, with the instructions of the CPU if available
+*/
+static int cbc_crypt(aes_state *c_state, const uint8_t *in, uint8_t *out, uint32_t len, uint8_t *iv) {
+  if( c_state->hw_rounds ) {
+    if( c_state->direction == ENCRYPTION )
+      aes_hw_cbc_encrypt(in, out, len / AES_BLOCK_SIZE, iv, c_state->hw_keys, c_state->hw_rounds);
+    else
+      aes_hw_cbc_decrypt(in, out, len / AES_BLOCK_SIZE, iv, c_state->hw_keys, c_state->hw_rounds);
+    return EXIT_SUCCESS;
+  }
+  if( c_state->direction == ENCRYPTION )
+    return aes_cbc_encrypt(in, out, len, iv, ENC_CTX(c_state));
+  else
+    return aes_cbc_decrypt(in, out, len, iv, DEC_CTX(c_state));
+}
+
+typedef struct _cbc_segment {
+  aes_state *state;
+  const uint8_t *in;
+  uint8_t *out;
+  uint32_t len;
+  int ret;
+  uint8_t iv[AES_BLOCK_SIZE];
+} cbc_segment;
+
+static void *decrypt_segment(void *arg) {
+  cbc_segment *segment = (cbc_segment *)arg;
+  segment->ret = cbc_crypt(segment->state, segment->in, segment->out, segment->len, segment->iv);
+  return NULL;
+}
+
+/*
+  Threads kept waiting for the segments of the next parallel decryption,
+  created once instead of at each update. A single decryption uses them at a time.
+*/
+static struct {
+  pthread_mutex_t busy; // held during a parallel decryption
+  pthread_mutex_t lock; // protects the fields below
+  pthread_cond_t work, done;
+  int workers;
+  cbc_segment *segments;
+  int segment_count, next_segment, remaining;
+} pool = { PTHREAD_MUTEX_INITIALIZER, PTHREAD_MUTEX_INITIALIZER, PTHREAD_COND_INITIALIZER, PTHREAD_COND_INITIALIZER, 0, NULL, 0, 0, 0 };
+
+/*
+  Decrypt the segments not yet taken, pool.lock must be held and is held on return
+*/
+static void pool_decrypt_segments(void) {
+  int i;
+  while( pool.next_segment < pool.segment_count ) {
+    i = pool.next_segment++;
+    pthread_mutex_unlock(&pool.lock);
+    decrypt_segment(&pool.segments[i]);
+    pthread_mutex_lock(&pool.lock);
+    if( --pool.remaining == 0 )
+      pthread_cond_signal(&pool.done);
+  }
+}
+
+static void *pool_worker(void *arg) {
+  pthread_mutex_lock(&pool.lock);
+  for(;;) {
+    while( pool.next_segment >= pool.segment_count )
+      pthread_cond_wait(&pool.work, &pool.lock);
+    pool_decrypt_segments();
+  }
+  return NULL;
+}
+
+/*
+  Start the workers missing to decrypt segment_count segments with the current thread,
+  the current thread decrypts alone the segments of the workers which can't be created
+*/
+static void pool_start_workers(int segment_count) {
+  pthread_t thread;
+  pthread_attr_t attr;
+
+  if( pool.workers >= segment_count - 1 || pthread_attr_init(&attr) != 0 )
+    return;
+  pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+  while( pool.workers < segment_count - 1 ) {
+    if( pthread_create(&thread, &attr, pool_worker, NULL) != 0 )
+      break;
+    pool.workers++;
+  }
+  pthread_attr_destroy(&attr);
+}
+
+/*
+  Each CBC block is decrypted with the previous ciphertext block only,
+  so a large input is split in segments decrypted in parallel, each one starting
+  with the last ciphertext block of the previous segment as iv.
+*/
+static int cbc_decrypt_parallel(aes_state *c_state, const uint8_t *in, uint8_t *out, uint32_t len) {
+  cbc_segment segments[MAX_PARALLEL_SEGMENTS];
+  uint8_t last_block[AES_BLOCK_SIZE];
+  uint32_t segment_len, offset;
+  int i, segment_count, ret = EXIT_SUCCESS;
+
+  segment_count = (int)(len / PARALLEL_SEGMENT_SIZE);
+  if( segment_count > cpu_count )
+    segment_count = cpu_count;
+  if( segment_count > MAX_PARALLEL_SEGMENTS )
+    segment_count = MAX_PARALLEL_SEGMENTS;
+  // Small updates and concurrent decryptions are done by the current thread only
+  if( segment_count < 2 || pthread_mutex_trylock(&pool.busy) != 0 )
+    return cbc_crypt(c_state, in, out, len, c_state->iv);
+
+  segment_len = (len / segment_count) & ~(AES_BLOCK_SIZE - 1);
+  // Retrieve all the ivs before decrypting, the output can overwrite the input
+  memcpy(last_block, in + len - AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+  for( i = 0, offset = 0; i < segment_count; i++, offset += segment_len ) {
+    segments[i].state = c_state;
+    segments[i].in = in + offset;
+    segments[i].out = out + offset;
+    segments[i].len = (i == segment_count - 1) ? len - offset : segment_len;
+    segments[i].ret = EXIT_SUCCESS;
+    if( i == 0 )
+      memcpy(segments[i].iv, c_state->iv, AES_BLOCK_SIZE);
+    else
+      memcpy(segments[i].iv, in + offset - AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+  }
+
+  // The current thread decrypts the first segment, and the others not taken by the workers
+  pthread_mutex_lock(&pool.lock);
+  pool_start_workers(segment_count);
+  pool.segments = segments;
+  pool.segment_count = segment_count;
+  pool.next_segment = 1;
+  pool.remaining = segment_count - 1;
+  pthread_cond_broadcast(&pool.work);
+  pthread_mutex_unlock(&pool.lock);
+  decrypt_segment(&segments[0]);
+  pthread_mutex_lock(&pool.lock);
+  pool_decrypt_segments();
+  while( pool.remaining > 0 )
+    pthread_cond_wait(&pool.done, &pool.lock);
+  pool.segments = NULL;
+  pool.segment_count = pool.next_segment = 0;
+  pthread_mutex_unlock(&pool.lock);
+  pthread_mutex_unlock(&pool.busy);
+
+  for( i = 0; i < segment_count; i++ ) {
+    if( segments[i].ret != EXIT_SUCCESS )
+      ret = segments[i].ret;
+    memset(segments[i].iv, 0, AES_BLOCK_SIZE);
+  }
+  memcpy(c_state->iv, last_block, AES_BLOCK_SIZE);
+  return ret;
+}
+
+/*
+  Buffer of the state, reused by the updates and grown to at least size bytes, NULL if not allocated
+*/
+static uint8_t *get_state_buffer(aes_state *c_state, uint32_t size) {
+  if( c_state->buffer_size < size ) {
+    if( c_state->buffer != NULL ) {
+      memset(c_state->buffer, 0, c_state->buffer_size);
+      free(c_state->buffer);
+    }
+    c_state->buffer = malloc(size);
+    c_state->buffer_size = c_state->buffer == NULL ? 0 : size;
+  }
+  return c_state->buffer;
+}
+
+/*
+  Crypt the cache followed by the input, directly in the output,
+  and keep the last bytes in the cache (the final block must stay in the cache for the padding).
+  The output must not be ahead of the input, except by the head of the blocks started in the cache.
+  Return the output length or UPDATE_SHORT_BUFFER / UPDATE_CRYPT_FAILURE
+*/
+static jint update_state(aes_state *c_state, const uint8_t *input, uint32_t inputLen, uint8_t *output, uint32_t outputSize) {
+  uint32_t cryptLen, bytes2cache, outLen, headLen, fromCache, fromInput, bodyLen;
+  uint8_t head[CACHE_SIZE] __attribute__ ((aligned (16)));
+  uint8_t new_cache[CACHE_SIZE];
+  uint8_t head_iv[AES_BLOCK_SIZE];
+  const uint8_t *body_in;
+  uint8_t *body_out;
+  int parallel, ret = EXIT_SUCCESS;
+
+  cryptLen = inputLen + c_state->cache_len;
+  if( cryptLen < CACHE_SIZE ) {
+    memcpy(c_state->cache + c_state->cache_len, input, inputLen);
+    c_state->cache_len = cryptLen;
+    return 0;
+  }
+  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
+  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE; // mask bottom 4 bits plus 1 block
+  outLen = (cryptLen - bytes2cache); // output length is now aligned to a 16-byte boundary
+  if( outLen > outputSize )
+    return UPDATE_SHORT_BUFFER;
+
+  // Keep the bytes of the next call before the output overwrites the input
+  if( inputLen >= bytes2cache ) {
+    memcpy(new_cache, input + inputLen - bytes2cache, bytes2cache);
+  } else {
+    memcpy(new_cache, c_state->cache + (c_state->cache_len - (bytes2cache - inputLen)), bytes2cache - inputLen);
+    memcpy(new_cache + (bytes2cache - inputLen), input, inputLen);
+  }
+
+  // The blocks starting in the cache are completed with the input in a local buffer
+  headLen = (c_state->cache_len + AES_BLOCK_SIZE - 1) & ~(AES_BLOCK_SIZE - 1);
+  if( headLen > outLen )
+    headLen = outLen;
+  fromCache = c_state->cache_len < headLen ? c_state->cache_len : headLen;
+  fromInput = headLen - fromCache;
+  memcpy(head, c_state->cache, fromCache);
+  memcpy(head + fromCache, input, fromInput);
+
+  // The other blocks are processed in place
+  body_in = input + fromInput;
+  body_out = output + headLen;
+  bodyLen = outLen - headLen;
+  // Segments decrypted in parallel must not overwrite the input of each other
+  parallel = body_in == body_out || body_in + bodyLen <= body_out || body_out + bodyLen <= body_in;
+
+  if( c_state->direction == DECRYPTION ) {
+    // The body is chained to the last ciphertext block of the head, the head is decrypted last
+    memcpy(head_iv, c_state->iv, AES_BLOCK_SIZE);
+    if( headLen )
+      memcpy(c_state->iv, head + headLen - AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+    if( bodyLen ) {
+      if( parallel )
+        ret = cbc_decrypt_parallel(c_state, body_in, body_out, bodyLen);
+      else
+        ret = cbc_crypt(c_state, body_in, body_out, bodyLen, c_state->iv);
+    }
+    if( headLen && ret == EXIT_SUCCESS )
+      ret = cbc_crypt(c_state, head, output, headLen, head_iv);
+  } else {
+    // Encryption is sequential, the head is encrypted first in the local buffer
+    if( headLen )
+      ret = cbc_crypt(c_state, head, head, headLen, c_state->iv);
+    if( bodyLen && ret == EXIT_SUCCESS )
+      ret = cbc_crypt(c_state, body_in, body_out, bodyLen, c_state->iv);
+    if( headLen && ret == EXIT_SUCCESS )
+      memcpy(output, head, headLen);
+  }
+
+  memset(head, 0, sizeof(head));
+  memset(head_iv, 0, sizeof(head_iv));
+  if( ret != EXIT_SUCCESS ) {
+    memset(new_cache, 0, sizeof(new_cache));
+    return UPDATE_CRYPT_FAILURE;
+  }
+
+  memcpy(c_state->cache, new_cache, bytes2cache);
+  c_state->cache_len = bytes2cache;
+  memset(new_cache, 0, sizeof(new_cache));
+
+  return (jint)outLen;
+}
+
+static jint throw_update_error(JNIEnv *env, jint ret) {
+  if( ret == UPDATE_SHORT_BUFFER )
+    (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
+  else if( ret == UPDATE_CRYPT_FAILURE )
+    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+  return -1;
+}
+
 /*
   TODO:
   It seems like the android implementation of the AES cipher stays a
@@ -165,10 +471,8 @@ JNIEXPORT void JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nCleanu
 
 JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate(JNIEnv *env, jobject this,
 	jlong state, jbyteArray input, jint inputOffset, jint inputLen, jbyteArray output, jint outputOffset, jint outputSize) {
-  int aes_ret;
-  uint32_t outLen, bytes2cache, cryptLen;
-  void *in, *out;
-  uint8_t *c_input, *c_output;
+  jint ret, outLen = 0;
+  uint32_t cryptLen, chunkLen, cacheLen;
   aes_state *c_state;
 
   #if defined(KPD_DEBUG)
@@ -185,73 +489,96 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdate
     (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
     return -1;
   }
-
-  // step 1.5: calculate cryptLen and outLen
-  cryptLen = inputLen + c_state->cache_len;
-  if( cryptLen < CACHE_SIZE ) {
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_state->cache + c_state->cache_len));
-    c_state->cache_len = cryptLen;
-    return 0;
+  if( outputSize > (*env)->GetArrayLength(env, output) - outputOffset ) {
+    outputSize = (*env)->GetArrayLength(env, output) - outputOffset;
   }
-  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
-  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE; // mask bottom 4 bits plus 1 block
-  outLen = (cryptLen - bytes2cache); // output length is now aligned to a 16-byte boundary
-  if( outLen > (uint32_t)outputSize ) {
-    (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
+  // Check the whole output before the first chunk changes the state
+  cryptLen = inputLen + c_state->cache_len;
+  if( cryptLen >= CACHE_SIZE && cryptLen - ((cryptLen & 15) + AES_BLOCK_SIZE) > (uint32_t)outputSize )
+    return throw_update_error(env, UPDATE_SHORT_BUFFER);
+  chunkLen = inputLen < UPDATE_CHUNK_SIZE ? (uint32_t)inputLen : UPDATE_CHUNK_SIZE;
+  if( get_state_buffer(c_state, CACHE_SIZE + chunkLen) == NULL ) {
+    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
     return -1;
   }
 
-  // step 2: allocate memory to hold input and output data
-  in = malloc(cryptLen+ALIGN_EXTRA);
-  if( in == NULL ) {
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
-    return -1;
+  // step 2: copy the input by chunk without holding the Java arrays during the decryption threads,
+  // each chunk is placed after the cache length so that the crypt is done in place
+  while( inputLen > 0 ) {
+    chunkLen = inputLen < UPDATE_CHUNK_SIZE ? (uint32_t)inputLen : UPDATE_CHUNK_SIZE;
+    cacheLen = c_state->cache_len;
+    (*env)->GetByteArrayRegion(env, input, inputOffset, (jint)chunkLen, (jbyte *)(c_state->buffer + cacheLen));
+    if( (*env)->ExceptionCheck(env) )
+      return -1;
+    ret = update_state(c_state, c_state->buffer + cacheLen, chunkLen, c_state->buffer, (uint32_t)(outputSize - outLen));
+    if( ret < 0 ) {
+      memset(c_state->buffer, 0, cacheLen + chunkLen);
+      return throw_update_error(env, ret);
+    }
+    (*env)->SetByteArrayRegion(env, output, outputOffset + outLen, ret, (jbyte *)c_state->buffer);
+    memset(c_state->buffer, 0, cacheLen + chunkLen);
+    if( (*env)->ExceptionCheck(env) )
+      return -1;
+    outLen += ret;
+    inputOffset += (jint)chunkLen;
+    inputLen -= (jint)chunkLen;
   }
-  c_input = ALIGN16(in);
 
-  out = malloc(outLen+ALIGN_EXTRA);
-  if( out == NULL ) {
-    free(in);
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption output");
+  #if defined(KPD_DEBUG)
+  __android_log_print(ANDROID_LOG_INFO, "aes_jni.c/nUpdate", "exit: outLen=%d", outLen);
+  #endif
+
+  return outLen;
+}
+
+/*
+  Crypt the direct buffers in place, without copy, except if the output is ahead of the input in the same memory
+*/
+JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nUpdateDirect(JNIEnv *env, jobject this,
+	jlong state, jobject input, jint inputOffset, jint inputLen, jobject output, jint outputOffset, jint outputSize) {
+  jint ret;
+  uint8_t *c_input, *c_output, *buffer;
+  uint32_t cacheLen;
+  aes_state *c_state;
+
+  if( !inputLen || inputOffset < 0 || outputOffset < 0 || !input || !output ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: called with 1 or more invalid arguments");
     return -1;
   }
-  c_output = ALIGN16(out);
-
-  // step 3: copy data from Java and en/decrypt it
-  if( c_state->cache_len ) {
-    memcpy(c_input, c_state->cache, c_state->cache_len);
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_input + c_state->cache_len));
-  } else {
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)c_input);
+  c_state = (aes_state *)state;
+  if( c_state->direction == FINALIZED ) {
+    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
+    return -1;
   }
-  if( c_state->direction == ENCRYPTION )
-    aes_ret = aes_cbc_encrypt(c_input, c_output, outLen, c_state->iv, ENC_CTX(c_state));
-  else
-    aes_ret = aes_cbc_decrypt(c_input, c_output, outLen, c_state->iv, DEC_CTX(c_state));
-  if( aes_ret != EXIT_SUCCESS ) {
-    free(in);
-    free(out);
-    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+  c_input = (*env)->GetDirectBufferAddress(env, input);
+  c_output = (*env)->GetDirectBufferAddress(env, output);
+  if( c_input == NULL || c_output == NULL ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: buffers must be direct");
     return -1;
   }
-  (*env)->SetByteArrayRegion(env, output, outputOffset, outLen, (jbyte *)c_output);
+  c_input += inputOffset;
+  c_output += outputOffset;
 
-  // step 4: cleanup and return
-  if( bytes2cache ) {
-    c_state->cache_len = bytes2cache; // set new cache length
-    memcpy(c_state->cache, (c_input + outLen), bytes2cache); // cache overflow bytes for next call
+  // An output ahead of the input would overwrite the input before it is read,
+  // the input is copied after the cache length to be crypted in place
+  if( c_output > c_input && c_output < c_input + inputLen ) {
+    cacheLen = c_state->cache_len;
+    buffer = get_state_buffer(c_state, cacheLen + (uint32_t)inputLen);
+    if( buffer == NULL ) {
+      (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+      return -1;
+    }
+    memcpy(buffer + cacheLen, c_input, inputLen);
+    ret = update_state(c_state, buffer + cacheLen, (uint32_t)inputLen, buffer, (uint32_t)outputSize);
+    if( ret > 0 )
+      memcpy(c_output, buffer, ret);
+    memset(buffer, 0, cacheLen + (uint32_t)inputLen);
   } else {
-    c_state->cache_len = 0;
+    ret = update_state(c_state, c_input, (uint32_t)inputLen, c_output, (uint32_t)outputSize);
   }
-
-  free(in);
-  free(out);
-
-  #if defined(KPD_DEBUG)
-  __android_log_print(ANDROID_LOG_INFO, "aes_jni.c/nUpdate", "exit: outLen=%d", outLen);
-  #endif
-
-  return outLen;
+  if( ret < 0 )
+    return throw_update_error(env, ret);
+  return ret;
 }
 
 /*
@@ -303,7 +630,7 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nFinal(
     padValue = paddedCacheLen - c_state->cache_len;
     if(!padValue) padValue = 16;
     memset(c_state->cache + c_state->cache_len, padValue, padValue);
-    if( aes_cbc_encrypt(c_state->cache, final_output, paddedCacheLen, c_state->iv, ENC_CTX(c_state)) != EXIT_SUCCESS ) {
+    if( cbc_crypt(c_state, c_state->cache, final_output, paddedCacheLen, c_state->iv) != EXIT_SUCCESS ) {
       (*env)->ThrowNew(env, bad_arg, "Failed to encrypt the final data block(s)"); // FIXME: get a better exception class for this...
       return -1;
     }
@@ -324,7 +651,7 @@ JNIEXPORT jint JNICALL Java_com_kunzisoft_encrypt_aes_NativeAESCipherSpi_nFinal(
       (*env)->ThrowNew(env, bad_padding, "Incomplete final block in cache for decryption state");
       return -1;
     }
-    if( aes_cbc_decrypt(c_state->cache, final_output, paddedCacheLen, c_state->iv, DEC_CTX(c_state)) != EXIT_SUCCESS ) {
+    if( cbc_crypt(c_state, c_state->cache, final_output, paddedCacheLen, c_state->iv) != EXIT_SUCCESS ) {
       (*env)->ThrowNew(env, bad_arg, "Failed to decrypt the final data block(s)"); // FIXME: get a better exception class for this...
       return -1;
     }
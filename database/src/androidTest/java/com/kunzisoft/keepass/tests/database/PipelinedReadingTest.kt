@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import android.content.Context
+import androidx.test.platform.app.InstrumentationRegistry
+import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import com.kunzisoft.keepass.database.element.Attachment
+import com.kunzisoft.keepass.database.element.CustomDataItem
+import com.kunzisoft.keepass.database.element.Field
+import com.kunzisoft.keepass.database.element.MasterCredential
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.element.security.ProtectedString
+import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
+import com.kunzisoft.keepass.database.file.input.DatabaseInputKDBX
+import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
+import junit.framework.TestCase.assertEquals
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import kotlin.random.Random
+
+class PipelinedReadingTest {
+
+    private val context: Context by lazy {
+        InstrumentationRegistry.getInstrumentation().context
+    }
+
+    private val masterCredential = MasterCredential("pipelined")
+
+    private fun buildDatabase(): DatabaseKDBX {
+        val database = DatabaseKDBX("Pipelined", "Root").apply {
+            binaryCache.cacheDirectory = context.filesDir
+            kdfEngine = KdfFactory.aesKdf
+            numberKeyEncryptionRounds = 100
+            // Header custom data requires the version 4
+            customData.put(CustomDataItem("pipelined", "true"))
+        }
+        val rootGroup = database.rootGroup!!
+        for (groupNumber in 0 until 20) {
+            val group = database.createGroup().apply {
+                title = "Group $groupNumber"
+            }
+            database.addGroupTo(group, rootGroup)
+            // Enough entries to fill several HMAC blocks and pipeline chunks
+            for (entryNumber in 0 until 200) {
+                val entry = database.createEntry().apply {
+                    title = "Entry $groupNumber-$entryNumber"
+                    username = "user$entryNumber"
+                    password = Random.nextBytes(16).joinToString("") { "%02x".format(it) }
+                    url = "https://example$entryNumber.org"
+                    notes = "Notes of the entry $entryNumber"
+                    putField(Field("PIN", ProtectedString(true, "$entryNumber")))
+                    putField(Field("Custom", ProtectedString(false, "Value $entryNumber")))
+                }
+                database.addEntryTo(entry, group)
+            }
+        }
+        val attachmentEntry = database.createEntry().apply {
+            title = "Attachment"
+        }
+        val binaryData = database.buildNewBinaryAttachment(
+            smallSize = false,
+            compression = false,
+            protection = true
+        )
+        binaryData.getOutputDataStream(database.binaryCache).use {
+            it.write(Random.nextBytes(300000))
+        }
+        attachmentEntry.putAttachment(Attachment("attachment.bin", binaryData), database.attachmentPool)
+        database.addEntryTo(attachmentEntry, rootGroup)
+        return database
+    }
+
+    private fun writeDatabase(database: DatabaseKDBX): ByteArray {
+        val outputStream = ByteArrayOutputStream()
+        DatabaseOutputKDBX(database).writeDatabase(outputStream) {
+            database.deriveMasterKey(masterCredential) { _, _ ->
+                throw UnsupportedOperationException()
+            }
+        }
+        return outputStream.toByteArray()
+    }
+
+    private fun readDatabase(data: ByteArray, pipelined: Boolean): DatabaseKDBX {
+        val database = DatabaseKDBX().apply {
+            binaryCache.cacheDirectory = context.filesDir
+        }
+        DatabaseInputKDBX(database).apply {
+            setPipelinedReading(pipelined)
+            openDatabase(ByteArrayInputStream(data), null) {
+                database.deriveMasterKey(masterCredential) { _, _ ->
+                    throw UnsupportedOperationException()
+                }
+            }
+        }
+        return database
+    }
+
+    private fun assertEntriesEquals(expected: EntryKDBX, actual: EntryKDBX) {
+        assertEquals(expected.id, actual.id)
+        assertEquals(expected.lastModificationTime, actual.lastModificationTime)
+        assertEquals(expected.getFields().map { it.name to it.protectedValue.toString() },
+            actual.getFields().map { it.name to it.protectedValue.toString() })
+        assertEquals(expected.getFields().map { it.protectedValue.isProtected },
+            actual.getFields().map { it.protectedValue.isProtected })
+        assertEquals(expected.binaries.keys.toList(), actual.binaries.keys.toList())
+        assertEquals(expected.history.size, actual.history.size)
+    }
+
+    private fun assertGroupsEquals(expected: GroupKDBX, actual: GroupKDBX) {
+        assertEquals(expected.id, actual.id)
+        assertEquals(expected.title, actual.title)
+        assertEquals(expected.lastModificationTime, actual.lastModificationTime)
+        val expectedEntries = expected.getChildEntries()
+        val actualEntries = actual.getChildEntries()
+        assertEquals(expectedEntries.size, actualEntries.size)
+        expectedEntries.zip(actualEntries).forEach { (expectedEntry, actualEntry) ->
+            assertEntriesEquals(expectedEntry, actualEntry)
+        }
+        val expectedGroups = expected.getChildGroups()
+        val actualGroups = actual.getChildGroups()
+        assertEquals(expectedGroups.size, actualGroups.size)
+        expectedGroups.zip(actualGroups).forEach { (expectedGroup, actualGroup) ->
+            assertGroupsEquals(expectedGroup, actualGroup)
+        }
+    }
+
+    @Test
+    fun testPipelinedReadingEqualsSequentialReading() {
+        val data = writeDatabase(buildDatabase())
+
+        val sequentialDatabase = readDatabase(data, false)
+        val pipelinedDatabase = readDatabase(data, true)
+
+        assertEquals(FILE_VERSION_40, sequentialDatabase.kdbxVersion)
+        assertEquals(sequentialDatabase.kdbxVersion, pipelinedDatabase.kdbxVersion)
+        assertEquals(sequentialDatabase.name, pipelinedDatabase.name)
+        assertEquals(sequentialDatabase.customData.get("pipelined")?.value,
+            pipelinedDatabase.customData.get("pipelined")?.value)
+        assertGroupsEquals(sequentialDatabase.rootGroup!!, pipelinedDatabase.rootGroup!!)
+
+        val sequentialBinaries = ArrayList<String?>()
+        sequentialDatabase.attachmentPool.doForEachBinary { _, binary ->
+            sequentialBinaries.add(binary.binaryDigest())
+        }
+        val pipelinedBinaries = ArrayList<String?>()
+        pipelinedDatabase.attachmentPool.doForEachBinary { _, binary ->
+            pipelinedBinaries.add(binary.binaryDigest())
+        }
+        assertEquals(1, sequentialBinaries.size)
+        assertEquals(sequentialBinaries, pipelinedBinaries)
+
+        sequentialDatabase.clearAll()
+        pipelinedDatabase.clearAll()
+    }
+}
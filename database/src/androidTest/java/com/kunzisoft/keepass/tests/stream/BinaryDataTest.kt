@@ -42,7 +42,7 @@ class BinaryDataTest {
         saveBinary(TEST_TEXT_ASSET, binaryA)
         saveBinary(TEST_TEXT_ASSET, binaryB)
         assertEquals("Save text binary length failed.", binaryA.getSize(), binaryB.getSize())
-        assertEquals("Save text binary MD5 failed.", binaryA.binaryHash(), binaryB.binaryHash())
+        assertEquals("Save text binary MD5 failed.", binaryA.binaryDigest(), binaryB.binaryDigest())
     }
 
     @Test
@@ -52,7 +52,7 @@ class BinaryDataTest {
         saveBinary(TEST_IMAGE_ASSET, binaryA)
         saveBinary(TEST_IMAGE_ASSET, binaryB)
         assertEquals("Save image binary length failed.", binaryA.getSize(), binaryB.getSize())
-        assertEquals("Save image binary failed.", binaryA.binaryHash(), binaryB.binaryHash())
+        assertEquals("Save image binary failed.", binaryA.binaryDigest(), binaryB.binaryDigest())
     }
 
     @Test
@@ -66,10 +66,10 @@ class BinaryDataTest {
         binaryA.compress(binaryCache)
         binaryB.compress(binaryCache)
         assertEquals("Compress text length failed.", binaryA.getSize(), binaryB.getSize())
-        assertEquals("Compress text MD5 failed.", binaryA.binaryHash(), binaryB.binaryHash())
+        assertEquals("Compress text MD5 failed.", binaryA.binaryDigest(), binaryB.binaryDigest())
         binaryB.decompress(binaryCache)
         assertEquals("Decompress text length failed.", binaryB.getSize(), binaryC.getSize())
-        assertEquals("Decompress text MD5 failed.", binaryB.binaryHash(), binaryC.binaryHash())
+        assertEquals("Decompress text MD5 failed.", binaryB.binaryDigest(), binaryC.binaryDigest())
     }
 
     @Test
@@ -83,11 +83,11 @@ class BinaryDataTest {
         binaryA.compress(binaryCache)
         binaryB.compress(binaryCache)
         assertEquals("Compress image length failed.", binaryA.getSize(), binaryA.getSize())
-        assertEquals("Compress image failed.", binaryA.binaryHash(), binaryA.binaryHash())
+        assertEquals("Compress image failed.", binaryA.binaryDigest(), binaryA.binaryDigest())
         binaryB = BinaryFile(fileB, true)
         binaryB.decompress(binaryCache)
         assertEquals("Decompress image length failed.", binaryB.getSize(), binaryC.getSize())
-        assertEquals("Decompress image failed.", binaryB.binaryHash(), binaryC.binaryHash())
+        assertEquals("Decompress image failed.", binaryB.binaryDigest(), binaryC.binaryDigest())
     }
 
     @Test
@@ -118,11 +118,11 @@ class BinaryDataTest {
         binaryB.compress(binaryCache)
         assertEquals("Compress bytes decompressed failed.", binaryA.isCompressed, true)
         assertEquals("Compress bytes length failed.", binaryA.getSize(), binaryA.getSize())
-        assertEquals("Compress bytes failed.", binaryA.binaryHash(), binaryA.binaryHash())
+        assertEquals("Compress bytes failed.", binaryA.binaryDigest(), binaryA.binaryDigest())
         binaryB.decompress(binaryCache)
         assertEquals("Decompress bytes decompressed failed.", binaryB.isCompressed, false)
         assertEquals("Decompress bytes length failed.", binaryB.getSize(), binaryC.getSize())
-        assertEquals("Decompress bytes failed.", binaryB.binaryHash(), binaryC.binaryHash())
+        assertEquals("Decompress bytes failed.", binaryB.binaryDigest(), binaryC.binaryDigest())
     }
 
     @Test
@@ -29,28 +29,50 @@ import javax.crypto.spec.SecretKeySpec
 object HmacBlock {
 
     fun getHmacSha256(blockKey: ByteArray): Mac {
-        val hmac: Mac
+        val hmac = getHmacSha256()
+        initHmacSha256(hmac, blockKey)
+        return hmac
+    }
+
+    /**
+     * Retrieve a not initialized Mac, to reuse it for many blocks with [initHmacSha256]
+     */
+    fun getHmacSha256(): Mac {
         try {
-            hmac = Mac.getInstance("HmacSHA256")
-            val signingKey = SecretKeySpec(blockKey, "HmacSHA256")
-            hmac.init(signingKey)
+            return Mac.getInstance("HmacSHA256")
         } catch (e: NoSuchAlgorithmException) {
             throw IOException("No HmacAlogirthm")
+        }
+    }
+
+    fun initHmacSha256(hmac: Mac, blockKey: ByteArray) {
+        try {
+            val signingKey = SecretKeySpec(blockKey, "HmacSHA256")
+            hmac.init(signingKey)
         } catch (e: InvalidKeyException) {
             throw IOException("Invalid Hmac Key")
         }
-        return hmac
     }
 
     fun getHmacKey64(key: ByteArray, blockIndex: ByteArray): ByteArray {
-        val hash: MessageDigest
+        return getHmacKey64(getSha512(), key, blockIndex)
+    }
+
+    /**
+     * Same as [getHmacKey64] but with a reusable [hash] retrieved by [getSha512]
+     */
+    fun getHmacKey64(hash: MessageDigest, key: ByteArray, blockIndex: ByteArray): ByteArray {
+        hash.reset()
+        hash.update(blockIndex)
+        hash.update(key)
+        return hash.digest()
+    }
+
+    fun getSha512(): MessageDigest {
         try {
-            hash = MessageDigest.getInstance("SHA-512")
+            return MessageDigest.getInstance("SHA-512")
         } catch (e: NoSuchAlgorithmException) {
             throw RuntimeException(e)
         }
-        hash.update(blockIndex)
-        hash.update(key)
-        return hash.digest()
     }
 }
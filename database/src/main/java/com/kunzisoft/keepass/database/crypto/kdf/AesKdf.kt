@@ -78,6 +78,9 @@ class AesKdf : KdfEngine() {
         kdfParameters.setUInt64(PARAM_ROUNDS, UnsignedLong(keyRounds))
     }
 
+    override val calibrationStartRounds: Long
+        get() = CALIBRATION_START_ROUNDS
+
     override fun toString(): String {
         return "AES"
     }
@@ -102,6 +105,8 @@ class AesKdf : KdfEngine() {
                         0x4F.toByte(),
                         0xEA.toByte()))
 
+        private const val CALIBRATION_START_ROUNDS = 10000L
+
         const val PARAM_ROUNDS = "R" // UInt64
         const val PARAM_SEED = "S" // Byte array
     }
@@ -125,6 +125,24 @@ class Argon2Kdf(private val type: Type) : KdfEngine() {
         kdfParameters.setUInt32(PARAM_PARALLELISM, UnsignedInt.fromKotlinLong(parallelism))
     }
 
+    override fun prepareCalibration(kdfParameters: KdfParameters, memoryBudget: Long) {
+        // Memory is used by blocks of 1 KiB
+        setMemoryUsage(kdfParameters, (memoryBudget / MEMORY_BLOCK_SIZE * MEMORY_BLOCK_SIZE)
+            .coerceIn(minMemoryUsage, maxMemoryUsage))
+        // Use all the cores of the device
+        setParallelism(kdfParameters, Runtime.getRuntime().availableProcessors().toLong()
+            .coerceIn(minParallelism, maxParallelism))
+    }
+
+    override fun reduceCalibrationCost(kdfParameters: KdfParameters): Boolean {
+        val memory = getMemoryUsage(kdfParameters)
+        if (memory <= minMemoryUsage)
+            return false
+        setMemoryUsage(kdfParameters, (memory / 2 / MEMORY_BLOCK_SIZE * MEMORY_BLOCK_SIZE)
+            .coerceAtLeast(minMemoryUsage))
+        return true
+    }
+
     override fun toString(): String {
         return "$type"
     }
@@ -22,6 +22,7 @@ package com.kunzisoft.keepass.database.crypto.kdf
 import com.kunzisoft.keepass.utils.UnsignedInt
 import java.io.IOException
 import java.io.Serializable
+import java.security.SecureRandom
 import java.util.*
 
 // TODO Parcelable
@@ -94,7 +95,84 @@ abstract class KdfEngine : Serializable {
     open val maxParallelism: Long
         get() = UnsignedInt.MAX_VALUE.toKotlinLong()
 
+    /*
+     * CALIBRATION
+     */
+
+    /**
+     * Build from [kdfParameters] new randomized parameters whose transformation lasts
+     * about [targetDuration] milliseconds on the current device,
+     * by running short timed transformations with an increasing number of rounds.
+     * Only the rounds are calibrated if [memoryBudget] is unknown, else the memory and the parallelism
+     * are also adapted to the device, with at most [memoryBudget] bytes if the engine uses memory.
+     */
+    @Throws(IOException::class)
+    fun calibrate(kdfParameters: KdfParameters,
+                  targetDuration: Long,
+                  memoryBudget: Long = UNKNOWN_VALUE): KdfParameters {
+        val parameters = KdfParameters(kdfParameters.uuid, kdfParameters)
+        randomize(parameters)
+        val adaptCost = memoryBudget != UNKNOWN_VALUE
+        if (adaptCost) {
+            prepareCalibration(parameters, memoryBudget)
+        }
+
+        val masterKey = ByteArray(32)
+        SecureRandom().nextBytes(masterKey)
+        val probeDuration = (targetDuration / CALIBRATION_PROBE_DIVISOR)
+            .coerceIn(1L, CALIBRATION_PROBE_MAX_DURATION)
+        try {
+            var rounds = calibrationStartRounds.coerceIn(minKeyRounds, maxKeyRounds)
+            while (true) {
+                setKeyRounds(parameters, rounds)
+                val startTime = System.nanoTime()
+                transform(masterKey, parameters).fill(0)
+                val duration = ((System.nanoTime() - startTime) / 1000000L).coerceAtLeast(1L)
+
+                // The minimal cost is already too long, reduce the cost of each round
+                if (adaptCost && rounds == minKeyRounds && duration > targetDuration
+                        && reduceCalibrationCost(parameters)) {
+                    continue
+                }
+                if (duration >= probeDuration || rounds >= maxKeyRounds) {
+                    val calibratedRounds = (rounds.toDouble() * targetDuration / duration).toLong()
+                    setKeyRounds(parameters, calibratedRounds.coerceIn(minKeyRounds, maxKeyRounds))
+                    return parameters
+                }
+                // Aim a little above the probe duration to avoid another probe
+                val nextRounds = (rounds.toDouble() * probeDuration * 1.25 / duration).toLong()
+                rounds = nextRounds.coerceIn(rounds * 2, maxKeyRounds)
+            }
+        } finally {
+            masterKey.fill(0)
+        }
+    }
+
+    /**
+     * Number of rounds of the first transformation of a calibration
+     */
+    protected open val calibrationStartRounds: Long
+        get() = minKeyRounds
+
+    /**
+     * Adapt the parameters other than the rounds to the device and to [memoryBudget] before a calibration
+     */
+    protected open fun prepareCalibration(kdfParameters: KdfParameters, memoryBudget: Long) {
+        // Do nothing by default
+    }
+
+    /**
+     * Reduce the cost of a round if a single round is too long, return false if it's not possible
+     */
+    protected open fun reduceCalibrationCost(kdfParameters: KdfParameters): Boolean {
+        return false
+    }
+
     companion object {
         const val UNKNOWN_VALUE: Long = -1L
+
+        // A probe lasts at least a quarter of the target duration, and at most 250 ms
+        private const val CALIBRATION_PROBE_DIVISOR = 4L
+        private const val CALIBRATION_PROBE_MAX_DURATION = 250L
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.crypto.kdf
+
+import android.util.Log
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Derive in background the transformed key of the next save, with freshly randomized parameters,
+ * so that the save doesn't have to wait for the whole key derivation function.
+ * The prepared key is only used if the parameters and the master key are unchanged at the time of the save.
+ */
+class KdfKeyAhead {
+
+    private var mPreparedKey: PreparedKey? = null
+
+    private class PreparedKey(
+        // Serialized parameters of the database when the key was prepared
+        val sourceParameters: ByteArray,
+        val masterKey: ByteArray,
+        val kdfParameters: KdfParameters,
+        val transformedKey: Future<ByteArray>
+    ) {
+        fun wipe() {
+            if (transformedKey.isDone) {
+                try {
+                    transformedKey.get().fill(0)
+                } catch (e: Exception) {
+                    // Nothing to wipe
+                }
+            } else {
+                transformedKey.cancel(true)
+            }
+            masterKey.fill(0)
+        }
+    }
+
+    /**
+     * Start the derivation of [masterKey] with a copy of [kdfParameters] randomized by [kdfEngine]
+     */
+    @Throws(IOException::class)
+    fun prepare(kdfEngine: KdfEngine, kdfParameters: KdfParameters, masterKey: ByteArray) {
+        val sourceParameters = KdfParameters.serialize(kdfParameters)
+        val nextParameters = KdfParameters(kdfParameters.uuid, kdfParameters)
+        kdfEngine.randomize(nextParameters)
+        val nextMasterKey = masterKey.copyOf()
+        val transformedKey = executor.submit(Callable {
+            val key = kdfEngine.transform(nextMasterKey, nextParameters)
+            // Don't keep the key if the preparation was cancelled in the meantime
+            if (Thread.interrupted()) {
+                key.fill(0)
+            }
+            key
+        })
+        synchronized(this) {
+            mPreparedKey?.wipe()
+            mPreparedKey = PreparedKey(sourceParameters, nextMasterKey, nextParameters, transformedKey)
+        }
+    }
+
+    /**
+     * Retrieve the randomized parameters of the prepared key,
+     * or null if [kdfParameters] have changed since the preparation
+     */
+    @Throws(IOException::class)
+    fun nextParameters(kdfParameters: KdfParameters): KdfParameters? {
+        val currentParameters = KdfParameters.serialize(kdfParameters)
+        synchronized(this) {
+            val preparedKey = mPreparedKey ?: return null
+            if (preparedKey.sourceParameters.contentEquals(currentParameters)) {
+                return preparedKey.kdfParameters
+            }
+            preparedKey.wipe()
+            mPreparedKey = null
+            return null
+        }
+    }
+
+    /**
+     * Retrieve the prepared key if it was derived from [masterKey] with [kdfParameters],
+     * wait for the end of the derivation if needed, return null if no key is available
+     */
+    fun consume(kdfParameters: KdfParameters, masterKey: ByteArray): ByteArray? {
+        val preparedKey = synchronized(this) {
+            mPreparedKey.also { mPreparedKey = null }
+        } ?: return null
+        if (preparedKey.kdfParameters !== kdfParameters
+            || !preparedKey.masterKey.contentEquals(masterKey)) {
+            preparedKey.wipe()
+            return null
+        }
+        return try {
+            preparedKey.transformedKey.get()
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to retrieve the prepared key", e)
+            null
+        } finally {
+            preparedKey.masterKey.fill(0)
+        }
+    }
+
+    /**
+     * Wait for the end of a cancelled preparation, a native derivation can't be interrupted
+     * and must not run at the same time as another derivation
+     */
+    fun awaitCancelled() {
+        try {
+            // The executor runs the tasks one after the other
+            executor.submit {}.get()
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to wait for the cancelled preparation", e)
+        }
+    }
+
+    /**
+     * Cancel the preparation and wipe the key material
+     */
+    fun clear() {
+        synchronized(this) {
+            mPreparedKey?.wipe()
+            mPreparedKey = null
+        }
+    }
+
+    companion object {
+        private val TAG = KdfKeyAhead::class.java.name
+
+        private val executor: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { runnable ->
+                Thread(runnable, "KDF key ahead").apply {
+                    isDaemon = true
+                }
+            }
+        }
+    }
+}
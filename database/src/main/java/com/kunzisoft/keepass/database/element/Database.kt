@@ -22,6 +22,7 @@ package com.kunzisoft.keepass.database.element
 import android.util.Log
 import com.kunzisoft.keepass.database.crypto.EncryptionAlgorithm
 import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
+import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
 import com.kunzisoft.keepass.database.element.binary.AttachmentPool
 import com.kunzisoft.keepass.database.element.binary.BinaryCache
 import com.kunzisoft.keepass.database.element.binary.BinaryData
@@ -47,10 +48,14 @@ import com.kunzisoft.keepass.database.file.input.DatabaseInputKDBX
 import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDB
 import com.kunzisoft.keepass.database.file.output.DatabaseOutputKDBX
 import com.kunzisoft.keepass.database.merge.DatabaseKDBXMerger
+import com.kunzisoft.keepass.database.search.DomainIndex
 import com.kunzisoft.keepass.database.search.SearchHelper
+import com.kunzisoft.keepass.database.search.SearchIndex
 import com.kunzisoft.keepass.database.search.SearchParameters
+import com.kunzisoft.keepass.database.search.TagIndex
 import com.kunzisoft.keepass.hardware.HardwareKey
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
+import com.kunzisoft.keepass.stream.VerifiableFileOutputStream
 import com.kunzisoft.keepass.utils.*
 import com.kunzisoft.keepass.utils.StringUtil.toFormattedColorInt
 import com.kunzisoft.keepass.utils.StringUtil.toFormattedColorString
@@ -65,6 +70,12 @@ open class Database {
     private var mDatabaseKDBX: DatabaseKDBX? = null
 
     private var mSearchHelper: SearchHelper = SearchHelper()
+    private var mSearchIndex: SearchIndex = SearchIndex()
+    private var mDomainIndex: DomainIndex = DomainIndex()
+    private var mTagIndex: TagIndex = TagIndex()
+
+    // Memory check of the last load, to know if a key can be derived in advance
+    private var mIsRAMSufficient: ((memoryWanted: Long) -> Boolean)? = null
 
     var isReadOnly = false
 
@@ -158,9 +169,8 @@ open class Database {
 
     fun entryIsTemplate(entry: Entry?): Boolean {
         // Define is current entry is a template (in direct template group)
-        if (entry == null || templatesGroup == null)
-            return false
-        return templatesGroup == entry.parent
+        val parentKDBX = entry?.entryKDBX?.parent ?: return false
+        return mDatabaseKDBX?.isTemplatesGroup(parentKDBX) ?: false
     }
 
     // Not the same as decode, here remove in all cases the template link in the entry data
@@ -348,6 +358,20 @@ open class Database {
             dataModifiedSinceLastLoading = true
         }
 
+    /**
+     * Retrieve the parameters of the current key derivation function
+     * lasting about [targetDuration] milliseconds on this device,
+     * the memory and the parallelism are also adapted with at most [memoryBudget] bytes if it's known,
+     * else only the rounds are calibrated with the current memory and parallelism
+     */
+    @Throws(IOException::class)
+    fun calibrateKdfParameters(targetDuration: Long,
+                               memoryBudget: Long = KdfEngine.UNKNOWN_VALUE): KdfParameters {
+        val kdfEngine = kdfEngine ?: throw IOException("Key derivation function unknown")
+        val kdfParameters = mDatabaseKDBX?.kdfParameters ?: kdfEngine.defaultParameters
+        return kdfEngine.calibrate(kdfParameters, targetDuration, memoryBudget)
+    }
+
     var memoryUsage: Long
         get() {
             return mDatabaseKDBX?.memoryUsage ?: return KdfEngine.UNKNOWN_VALUE
@@ -533,6 +557,8 @@ open class Database {
 
     private fun setDatabaseKDBX(databaseKDBX: DatabaseKDBX) {
         this.mDatabaseKDB = null
+        this.mDatabaseKDBX?.clearNextFinalKey()
+        this.mIsRAMSufficient = null
         this.mDatabaseKDBX = databaseKDBX
     }
 
@@ -542,6 +568,7 @@ open class Database {
         templateGroupName: String?
     ) {
         setDatabaseKDBX(DatabaseKDBX(databaseName, rootName, templateGroupName))
+        buildSearchIndex()
         // Set Database state
         this.dataModifiedSinceLastLoading = false
     }
@@ -555,6 +582,7 @@ open class Database {
         cacheDirectory: File,
         isRAMSufficient: (memoryWanted: Long) -> Boolean,
         fixDuplicateUUID: Boolean,
+        pipelinedReading: Boolean,
         progressTaskUpdater: ProgressTaskUpdater?
     ) {
         // Check if the file is writable
@@ -585,6 +613,8 @@ open class Database {
                         }
                         DatabaseInputKDBX(databaseKDBX).apply {
                             setMethodToCheckIfRAMIsSufficient(isRAMSufficient)
+                            setPipelinedReading(pipelinedReading
+                            && isRAMSufficient(DatabaseInputKDBX.PIPELINED_READING_MEMORY))
                             openDatabase(databaseInputStream,
                                 progressTaskUpdater) {
                                 databaseKDBX.deriveMasterKey(
@@ -597,6 +627,9 @@ open class Database {
                     }
             )
             loaded = true
+            buildSearchIndex()
+            mIsRAMSufficient = isRAMSufficient
+            prepareNextSave()
         } catch (e: Exception) {
             Log.e(TAG, "Unable to load the database")
             if (e is DatabaseInputException)
@@ -607,6 +640,10 @@ open class Database {
         }
     }
 
+    fun isHardwareKeyUsed(): Boolean {
+        return mDatabaseKDBX?.isHardwareKeyUsed() ?: false
+    }
+
     fun isMergeDataAllowed(): Boolean {
         return mDatabaseKDBX != null
     }
@@ -617,6 +654,7 @@ open class Database {
         databaseToMergeMasterCredential: MasterCredential?,
         databaseToMergeChallengeResponseRetriever: (HardwareKey, ByteArray?) -> ByteArray,
         isRAMSufficient: (memoryWanted: Long) -> Boolean,
+        pipelinedReading: Boolean,
         progressTaskUpdater: ProgressTaskUpdater?
     ) {
 
@@ -648,6 +686,8 @@ open class Database {
                     val databaseToMergeKDBX = DatabaseKDBX()
                     DatabaseInputKDBX(databaseToMergeKDBX).apply {
                         setMethodToCheckIfRAMIsSufficient(isRAMSufficient)
+                        setPipelinedReading(pipelinedReading
+                            && isRAMSufficient(DatabaseInputKDBX.PIPELINED_READING_MEMORY))
                         openDatabase(databaseInputStream, progressTaskUpdater) {
                             if (databaseToMergeMasterCredential != null) {
                                 databaseToMergeKDBX.deriveMasterKey(
@@ -678,6 +718,7 @@ open class Database {
                     databaseMerger.merge(databaseKDBXToMerge)
                     this.dataModifiedSinceLastLoading = true
                 }
+                buildSearchIndex()
             }
         } catch (e: Exception) {
             Log.e(TAG, "Unable to merge the database")
@@ -693,6 +734,7 @@ open class Database {
     fun reloadData(
         databaseStream: InputStream,
         isRAMSufficient: (memoryWanted: Long) -> Boolean,
+        pipelinedReading: Boolean,
         progressTaskUpdater: ProgressTaskUpdater?
     ) {
         try {
@@ -718,6 +760,8 @@ open class Database {
                     }
                     DatabaseInputKDBX(databaseKDBX).apply {
                         setMethodToCheckIfRAMIsSufficient(isRAMSufficient)
+                        setPipelinedReading(pipelinedReading
+                            && isRAMSufficient(DatabaseInputKDBX.PIPELINED_READING_MEMORY))
                         openDatabase(databaseInputStream, progressTaskUpdater) {
                             this@Database.mDatabaseKDBX?.let { thisDatabaseKDBX ->
                                 databaseKDBX.copyMasterKeyFrom(thisDatabaseKDBX)
@@ -728,6 +772,9 @@ open class Database {
                 }
             )
             loaded = true
+            buildSearchIndex()
+            mIsRAMSufficient = isRAMSufficient
+            prepareNextSave()
         } catch (e: Exception) {
             Log.e(TAG, "Unable to reload the database")
             if (e is DatabaseException)
@@ -779,54 +826,43 @@ open class Database {
     @Throws(DatabaseOutputException::class)
     fun saveData(
         cacheFile: File,
+        databaseFile: File?,
         databaseOutputStream: () -> OutputStream?,
         isNewLocation: Boolean,
         masterCredential: MasterCredential?,
         challengeResponseRetriever: (HardwareKey, ByteArray?) -> ByteArray
     ) {
+        // A local file can be replaced atomically, write in a sibling file and rename it
+        val siblingFile = databaseFile?.absoluteFile?.let { file ->
+            file.parentFile?.let { parent ->
+                if (parent.canWrite()) File(parent, ".${file.name}.tmp") else null
+            }
+        }
         try {
-            // Save in a temp memory to avoid exception
-            cacheFile.outputStream().use { outputStream ->
-                mDatabaseKDB?.let { databaseKDB ->
-                    DatabaseOutputKDB(databaseKDB).apply {
-                        writeDatabase(outputStream) {
-                            if (masterCredential != null) {
-                                databaseKDB.deriveMasterKey(
-                                    masterCredential
-                                )
-                            } else {
-                                // No master key change
-                            }
-                        }
-                    }
+            if (databaseFile != null && siblingFile != null) {
+                VerifiableFileOutputStream(siblingFile).let { outputStream ->
+                    writeData(outputStream, masterCredential, challengeResponseRetriever)
+                    outputStream.verify()
                 }
-                ?: mDatabaseKDBX?.let { databaseKDBX ->
-                    DatabaseOutputKDBX(databaseKDBX).apply {
-                        writeDatabase(outputStream) {
-                            if (masterCredential != null) {
-                                // Build new master key from MainCredential
-                                databaseKDBX.deriveMasterKey(
-                                    masterCredential,
-                                    challengeResponseRetriever
-                                )
-                            } else {
-                                // Reuse composite key parts
-                                databaseKDBX.deriveCompositeKey(
-                                    challengeResponseRetriever
-                                )
-                            }
-                        }
-                    }
+                if (!siblingFile.renameTo(databaseFile)) {
+                    throw IOException("Unable to replace $databaseFile")
                 }
-            }
-            // Copy from the cache to the final stream
-            databaseOutputStream.invoke()?.use { outputStream ->
-                cacheFile.inputStream().use { inputStream ->
-                    inputStream.readAllBytes { buffer ->
-                        outputStream.write(buffer)
+            } else {
+                // Save in a temp memory to avoid exception
+                VerifiableFileOutputStream(cacheFile).let { outputStream ->
+                    writeData(outputStream, masterCredential, challengeResponseRetriever)
+                    outputStream.verify()
+                }
+                // Copy from the cache to the final stream
+                databaseOutputStream.invoke()?.use { outputStream ->
+                    cacheFile.inputStream().use { inputStream ->
+                        inputStream.readAllBytes { buffer ->
+                            outputStream.write(buffer)
+                        }
                     }
                 }
             }
+            prepareNextSave()
         } catch (e: Exception) {
             Log.e(TAG, "Unable to save database", e)
             if (e is DatabaseException)
@@ -834,10 +870,16 @@ open class Database {
             throw DatabaseOutputException(e)
         } finally {
             try {
-                Log.d(TAG, "Delete database cache file $cacheFile")
-                cacheFile.delete()
+                if (siblingFile?.exists() == true) {
+                    Log.d(TAG, "Delete database temp file $siblingFile")
+                    siblingFile.delete()
+                }
+                if (cacheFile.exists()) {
+                    Log.d(TAG, "Delete database cache file $cacheFile")
+                    cacheFile.delete()
+                }
             } catch (e: Exception) {
-                Log.e(TAG, "Cache file $cacheFile cannot be deleted", e)
+                Log.e(TAG, "Temp file of $cacheFile cannot be deleted", e)
             }
             if (isNewLocation) {
                 this.dataModifiedSinceLastLoading = false
@@ -845,6 +887,60 @@ open class Database {
         }
     }
 
+    /**
+     * Write the encrypted database in [outputStream], the stream is closed at the end
+     */
+    private fun writeData(
+        outputStream: OutputStream,
+        masterCredential: MasterCredential?,
+        challengeResponseRetriever: (HardwareKey, ByteArray?) -> ByteArray
+    ) {
+        outputStream.use {
+            mDatabaseKDB?.let { databaseKDB ->
+                DatabaseOutputKDB(databaseKDB).apply {
+                    writeDatabase(outputStream) {
+                        if (masterCredential != null) {
+                            databaseKDB.deriveMasterKey(
+                                masterCredential
+                            )
+                        } else {
+                            // No master key change
+                        }
+                    }
+                }
+            }
+            ?: mDatabaseKDBX?.let { databaseKDBX ->
+                DatabaseOutputKDBX(databaseKDBX).apply {
+                    writeDatabase(outputStream) {
+                        if (masterCredential != null) {
+                            // Build new master key from MainCredential
+                            databaseKDBX.deriveMasterKey(
+                                masterCredential,
+                                challengeResponseRetriever
+                            )
+                        } else {
+                            // Reuse composite key parts
+                            databaseKDBX.deriveCompositeKey(
+                                challengeResponseRetriever
+                            )
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Derive in advance the key of the next save, only for a modifiable database
+     * and if the memory allows a second key derivation
+     */
+    private fun prepareNextSave() {
+        val isRAMSufficient = mIsRAMSufficient ?: return
+        if (!isReadOnly) {
+            mDatabaseKDBX?.prepareNextFinalKey(isRAMSufficient)
+        }
+    }
+
     fun groupIsInRecycleBin(group: Group): Boolean {
         val groupKDB = group.groupKDB
         val groupKDBX = group.groupKDBX
@@ -859,41 +955,66 @@ open class Database {
     fun groupIsInTemplates(group: Group): Boolean {
         val groupKDBX = group.groupKDBX
         if (groupKDBX != null) {
-            return mDatabaseKDBX?.getTemplatesGroup() == groupKDBX
+            return mDatabaseKDBX?.isTemplatesGroup(groupKDBX) ?: false
         }
         return false
     }
 
+    fun groupIsSearchable(group: Group): Boolean {
+        val groupKDBX = group.groupKDBX
+        if (groupKDBX != null) {
+            return mDatabaseKDBX?.isSearchable(groupKDBX) ?: true
+        }
+        return group.isSearchable()
+    }
+
     fun createVirtualGroupFromSearch(
         searchParameters: SearchParameters,
          fromGroup: NodeId<*>? = null,
          max: Int = Integer.MAX_VALUE
     ): Group? {
+        // Tags are retrieved directly by the tag index if they are the only field searched
+        val candidates = mTagIndex.getCandidates(searchParameters)
+            ?: mSearchIndex.getCandidates(searchParameters)
         return mSearchHelper.createVirtualGroupWithSearchResult(this,
-            searchParameters, fromGroup, max)
+            searchParameters, fromGroup, max, candidates)
     }
 
     fun createVirtualGroupFromSearchInfo(
         searchInfoString: String,
         max: Int = Integer.MAX_VALUE
     ): Group? {
+        val searchParameters = SearchParameters().apply {
+            searchQuery = searchInfoString
+            searchInTitles = true
+            searchInUsernames = false
+            searchInPasswords = false
+            searchInUrls = true
+            searchInNotes = true
+            searchInOTP = false
+            searchInOther = true
+            searchInUUIDs = false
+            searchInTags = false
+            searchInCurrentGroup = false
+            searchInSearchableGroup = true
+            searchInRecycleBin = false
+            searchInTemplates = false
+        }
+        // Domains and application ids are retrieved directly by the domain index,
+        // on label boundaries only, to not propose the entries of other sites or applications
+        val candidates = mDomainIndex.getCandidates(searchInfoString)
+            ?: mSearchIndex.getCandidates(searchParameters)
         return mSearchHelper.createVirtualGroupWithSearchResult(this,
-                SearchParameters().apply {
-                    searchQuery = searchInfoString
-                    searchInTitles = true
-                    searchInUsernames = false
-                    searchInPasswords = false
-                    searchInUrls = true
-                    searchInNotes = true
-                    searchInOTP = false
-                    searchInOther = true
-                    searchInUUIDs = false
-                    searchInTags = false
-                    searchInCurrentGroup = false
-                    searchInSearchableGroup = true
-                    searchInRecycleBin = false
-                    searchInTemplates = false
-                }, null, max)
+                searchParameters, null, max, candidates)
+    }
+
+    /**
+     * Index the entries to search them without checking each one
+     */
+    private fun buildSearchIndex() {
+        mSearchIndex.build(rootGroup)
+        mDomainIndex.build(rootGroup)
+        mTagIndex.build(rootGroup)
     }
 
     val tagPool: Tags
@@ -959,8 +1080,13 @@ open class Database {
 
     open fun clearAndClose(filesDirectory: File? = null) {
         clearIndexesAndBinaries(filesDirectory)
+        this.mDatabaseKDBX?.clearNextFinalKey()
+        this.mIsRAMSufficient = null
         this.mDatabaseKDB = null
         this.mDatabaseKDBX = null
+        this.mSearchIndex.clear()
+        this.mDomainIndex.clear()
+        this.mTagIndex.clear()
         this.loaded = false
     }
 
@@ -1055,6 +1181,9 @@ open class Database {
             mDatabaseKDBX?.addEntryTo(entryKDBX, parent.groupKDBX)
         }
         entry.afterAssignNewParent()
+        mSearchIndex.addEntry(entry)
+        mDomainIndex.addEntry(entry)
+        mTagIndex.addEntry(entry)
     }
 
     fun updateEntry(entry: Entry) {
@@ -1065,6 +1194,9 @@ open class Database {
         entry.entryKDBX?.let { entryKDBX ->
             mDatabaseKDBX?.updateEntry(entryKDBX)
         }
+        mSearchIndex.updateEntry(entry)
+        mDomainIndex.updateEntry(entry)
+        mTagIndex.updateEntry(entry)
     }
 
     fun removeEntryFrom(entry: Entry, parent: Group) {
@@ -1076,6 +1208,9 @@ open class Database {
             mDatabaseKDBX?.removeEntryFrom(entryKDBX, parent.groupKDBX)
         }
         entry.afterAssignNewParent()
+        mSearchIndex.removeEntry(entry.nodeId)
+        mDomainIndex.removeEntry(entry.nodeId)
+        mTagIndex.removeEntry(entry.nodeId)
     }
 
     fun addGroupTo(group: Group, parent: Group) {
@@ -1316,6 +1451,9 @@ open class Database {
 
     private fun removeOldestEntryHistory(entry: Entry) {
         entry.removeOldestEntryFromHistory()?.let {
+            entry.entryKDBX?.let { entryKDBX ->
+                mDatabaseKDBX?.updateAttachmentReferences(entryKDBX)
+            }
             it.getAttachments(attachmentPool, false).forEach { attachmentToRemove ->
                 removeAttachmentIfNotUsed(attachmentToRemove)
             }
@@ -1324,6 +1462,9 @@ open class Database {
 
     fun removeEntryHistory(entry: Entry, entryHistoryPosition: Int) {
         entry.removeEntryFromHistory(entryHistoryPosition)?.let {
+            entry.entryKDBX?.let { entryKDBX ->
+                mDatabaseKDBX?.updateAttachmentReferences(entryKDBX)
+            }
             it.getAttachments(attachmentPool, false).forEach { attachmentToRemove ->
                 removeAttachmentIfNotUsed(attachmentToRemove)
             }
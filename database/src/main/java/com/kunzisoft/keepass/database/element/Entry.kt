@@ -34,6 +34,7 @@ import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.database.element.node.NodeIdUUID
 import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.model.EntryInfo
+import com.kunzisoft.keepass.model.OtpModel
 import com.kunzisoft.keepass.otp.OtpElement
 import com.kunzisoft.keepass.otp.OtpEntryFields
 import com.kunzisoft.keepass.utils.readParcelableCompat
@@ -346,12 +347,7 @@ class Entry : Node, EntryVersionedInterface<Group> {
     }
 
     fun getOtpElement(): OtpElement? {
-        entryKDBX?.let {
-            return OtpEntryFields.parseFields { key ->
-                it.getFieldValue(key)?.toString()
-            }
-        }
-        return null
+        return entryKDBX?.getOtpElement()
     }
 
     fun startToManageFieldReferences(database: DatabaseKDBX) {
@@ -469,7 +465,8 @@ class Entry : Node, EntryVersionedInterface<Group> {
             entryInfo.autoType = autoType
             entryInfo.customFields = getExtraFields().toMutableList()
             // Add otpElement to generate token
-            entryInfo.otpModel = getOtpElement()?.otpModel
+            // The OTP element is shared by the entry, don't modify its model
+            entryInfo.otpModel = getOtpElement()?.otpModel?.let { OtpModel(it) }
             if (!raw) {
                 // Replace parameter fields by generated OTP fields
                 entryInfo.customFields = OtpEntryFields.generateAutoFields(entryInfo.customFields)
@@ -332,19 +332,21 @@ class Group : Node, GroupVersionedInterface<Group, Entry> {
     }
 
     fun refreshNumberOfChildEntries(filters: Array<ChildFilter> = emptyArray()) {
-        this.numberOfChildEntries = getFilteredChildEntries(filters).size
-        this.recursiveNumberOfChildEntries = getFilteredChildEntriesInGroups(filters)
-    }
+        val withoutMetaStream = filters.contains(ChildFilter.META_STREAM)
+        val showExpiredEntries = !filters.contains(ChildFilter.EXPIRED)
+        // Each filter combination has its own counts in the cache of the group
+        var filterKey = 0
+        filters.forEach { filterKey = filterKey or (1 shl it.ordinal) }
 
-    /**
-     * @return the cumulative number of entries in the current group and its children
-     */
-    private fun getFilteredChildEntriesInGroups(filters: Array<ChildFilter>): Int {
-        var counter = 0
-        getChildGroups().forEach { childGroup ->
-            counter += childGroup.getFilteredChildEntriesInGroups(filters)
+        val count = groupKDB?.getNumberOfChildEntries(filterKey, !showExpiredEntries) {
+            (!withoutMetaStream || !it.isMetaStream())
+                    && (!it.isCurrentlyExpires or showExpiredEntries)
+        } ?:
+        groupKDBX?.getNumberOfChildEntries(filterKey, !showExpiredEntries) {
+            !it.isCurrentlyExpires or showExpiredEntries
         }
-        return getFilteredChildEntries(filters).size + counter
+        this.numberOfChildEntries = count?.direct ?: 0
+        this.recursiveNumberOfChildEntries = count?.recursive ?: 0
     }
 
     /**
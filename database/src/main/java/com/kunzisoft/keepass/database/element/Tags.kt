@@ -6,19 +6,21 @@ import com.kunzisoft.keepass.utils.StringUtil.removeSpaceChars
 
 class Tags: Parcelable {
 
+    // Tags in insertion order, and as a set to check their presence without going through the list
     private val mTags = mutableListOf<String>()
+    private val mTagSet = HashSet<String>()
 
     constructor()
 
     constructor(values: String): this() {
-        mTags.addAll(values
-            .split(DELIMITER, DELIMITER1)
-            .filter { it.removeSpaceChars().isNotEmpty() }
-        )
+        values.split(DELIMITER, DELIMITER1).forEach {
+            put(it)
+        }
     }
 
     constructor(parcel: Parcel) : this() {
         parcel.readStringList(mTags)
+        mTagSet.addAll(mTags)
     }
 
     override fun writeToParcel(parcel: Parcel, flags: Int) {
@@ -32,6 +34,8 @@ class Tags: Parcelable {
     fun setTags(tags: Tags) {
         mTags.clear()
         mTags.addAll(tags.mTags)
+        mTagSet.clear()
+        mTagSet.addAll(tags.mTagSet)
     }
 
     fun get(position: Int): String {
@@ -39,8 +43,10 @@ class Tags: Parcelable {
     }
 
     fun put(tag: String) {
-        if (tag.removeSpaceChars().isNotEmpty() && !mTags.contains(tag))
+        if (!mTagSet.contains(tag) && tag.removeSpaceChars().isNotEmpty()) {
             mTags.add(tag)
+            mTagSet.add(tag)
+        }
     }
 
     fun put(tags: Tags) {
@@ -49,6 +55,10 @@ class Tags: Parcelable {
         }
     }
 
+    fun contains(tag: String): Boolean {
+        return mTagSet.contains(tag)
+    }
+
     fun isEmpty(): Boolean {
         return mTags.isEmpty()
     }
@@ -63,6 +73,7 @@ class Tags: Parcelable {
 
     fun clear() {
         mTags.clear()
+        mTagSet.clear()
     }
 
     fun toList(): List<String> {
@@ -19,8 +19,19 @@
  */
 package com.kunzisoft.keepass.database.element.binary
 
+import java.io.IOException
+import java.util.IdentityHashMap
+
 class AttachmentPool : BinaryPool<Int>() {
 
+    // Number of references to each key by the entries, null if the references are not counted
+    private var referenceCounts: HashMap<Int, Int>? = null
+    // Keys counted for each owner, to remove exactly the references added
+    private val ownerReferences = IdentityHashMap<Any, List<Int>>()
+
+    val areReferencesCounted: Boolean
+        get() = referenceCounts != null
+
     /**
      * Utility method to find an unused key in the pool
      */
@@ -41,4 +52,71 @@ class AttachmentPool : BinaryPool<Int>() {
         else
             index
     }
+
+    /**
+     * Start to count the references to the keys, [addAllReferences] must add the references of each owner
+     */
+    fun countReferences(addAllReferences: () -> Unit) {
+        clearReferences()
+        referenceCounts = HashMap()
+        addAllReferences.invoke()
+    }
+
+    /**
+     * Count the references of [owner] to [keys], replace the previous references of [owner]
+     */
+    fun addReferences(owner: Any, keys: List<Int>) {
+        val counts = referenceCounts ?: return
+        removeReferences(owner)
+        keys.forEach { key ->
+            counts[key] = (counts[key] ?: 0) + 1
+        }
+        ownerReferences[owner] = keys
+    }
+
+    /**
+     * Replace the references of [owner] by [keys], only if [owner] is already counted
+     */
+    fun updateReferences(owner: Any, keys: List<Int>) {
+        if (ownerReferences.containsKey(owner))
+            addReferences(owner, keys)
+    }
+
+    /**
+     * Remove the references of [owner]
+     */
+    fun removeReferences(owner: Any) {
+        val counts = referenceCounts ?: return
+        ownerReferences.remove(owner)?.forEach { key ->
+            val count = (counts[key] ?: 0) - 1
+            if (count > 0)
+                counts[key] = count
+            else
+                counts.remove(key)
+        }
+    }
+
+    /**
+     * Check if a key of [binaryData] is referenced, must be called only when the references are counted
+     */
+    fun isReferenced(binaryData: BinaryData): Boolean {
+        val counts = referenceCounts ?: return true
+        return getKeys(binaryData).any { key ->
+            (counts[key] ?: 0) > 0
+        }
+    }
+
+    /**
+     * Stop counting the references, to call if the owners are modified without notification
+     */
+    fun clearReferences() {
+        referenceCounts = null
+        ownerReferences.clear()
+    }
+
+    @Throws(IOException::class)
+    override fun clear() {
+        super.clear()
+        clearReferences()
+    }
 }
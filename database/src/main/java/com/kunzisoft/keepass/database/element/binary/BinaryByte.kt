@@ -21,8 +21,6 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.os.Parcel
 import android.os.Parcelable
-import android.util.Base64InputStream
-import android.util.Base64OutputStream
 import com.kunzisoft.keepass.database.element.binary.BinaryCache.Companion.UNKNOWN
 import com.kunzisoft.keepass.utils.readAllBytes
 import java.io.*
@@ -59,12 +57,12 @@ class BinaryByte : BinaryData {
 
     @Throws(IOException::class)
     override fun getInputDataStream(binaryCache: BinaryCache): InputStream {
-        return Base64InputStream(ByteArrayInputStream(getByteArray(binaryCache)), BASE64_FLAG)
+        return ByteArrayInputStream(getByteArray(binaryCache))
     }
 
     @Throws(IOException::class)
     override fun getOutputDataStream(binaryCache: BinaryCache): OutputStream {
-        return BinaryCountingOutputStream(Base64OutputStream(ByteOutputStream(binaryCache), BASE64_FLAG))
+        return BinaryCountingOutputStream(ByteOutputStream(binaryCache))
     }
 
     @Throws(IOException::class)
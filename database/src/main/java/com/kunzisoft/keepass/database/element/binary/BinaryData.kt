@@ -24,13 +24,13 @@ import android.content.Context
 import android.os.Parcel
 import android.os.Parcelable
 import android.util.Base64
+import com.kunzisoft.keepass.utils.StringUtil.toHexString
 import com.kunzisoft.keepass.utils.readBooleanCompat
 import com.kunzisoft.keepass.utils.writeBooleanCompat
 import org.apache.commons.io.output.CountingOutputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
-import java.nio.ByteBuffer
 import java.security.MessageDigest
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
@@ -43,13 +43,15 @@ abstract class BinaryData : Parcelable {
         protected set
     var isCorrupted: Boolean = false
     private var mLength: Long = 0
-    private var mBinaryHash = 0
+    private var mBinaryDigest: String? = null
+    // Not written in the parcel, an unparceled binary is only listened once put in a binary pool
+    private val mDigestListeners = ArrayList<DigestListener>()
 
     protected constructor(compressed: Boolean = false, protected: Boolean = false) {
         this.isCompressed = compressed
         this.isProtected = protected
         this.mLength = 0
-        this.mBinaryHash = 0
+        this.mBinaryDigest = null
     }
 
     protected constructor(parcel: Parcel) {
@@ -57,7 +59,7 @@ abstract class BinaryData : Parcelable {
         isProtected = parcel.readBooleanCompat()
         isCorrupted = parcel.readBooleanCompat()
         mLength = parcel.readLong()
-        mBinaryHash = parcel.readInt()
+        mBinaryDigest = parcel.readString()
     }
 
     override fun writeToParcel(dest: Parcel, flags: Int) {
@@ -65,7 +67,7 @@ abstract class BinaryData : Parcelable {
         dest.writeBooleanCompat(isProtected)
         dest.writeBooleanCompat(isCorrupted)
         dest.writeLong(mLength)
-        dest.writeInt(mBinaryHash)
+        dest.writeString(mBinaryDigest)
     }
 
     @Throws(IOException::class)
@@ -108,9 +110,23 @@ abstract class BinaryData : Parcelable {
         return mLength
     }
 
-    @Throws(IOException::class)
-    fun binaryHash(): Int {
-        return mBinaryHash
+    /**
+     * Full SHA-256 digest of the stored data, in hexadecimal, null if no data was written
+     */
+    fun binaryDigest(): String? {
+        return mBinaryDigest
+    }
+
+    /**
+     * Register a [listener] called each time the data, and so the digest, is rewritten
+     */
+    fun addDigestListener(listener: DigestListener) {
+        if (!mDigestListeners.contains(listener))
+            mDigestListeners.add(listener)
+    }
+
+    fun removeDigestListener(listener: DigestListener) {
+        mDigestListeners.remove(listener)
     }
 
     @Throws(IOException::class)
@@ -136,21 +152,23 @@ abstract class BinaryData : Parcelable {
         result = 31 * result + isProtected.hashCode()
         result = 31 * result + isCorrupted.hashCode()
         result = 31 * result + mLength.hashCode()
-        result = 31 * result + mBinaryHash
         return result
     }
 
 
+    interface DigestListener {
+        fun onDigestChanged(binaryData: BinaryData, oldDigest: String?)
+    }
+
     /**
-     * Custom OutputStream to calculate the size and hash of binary file
+     * Custom OutputStream to calculate the size and digest of binary file
      */
     protected inner class BinaryCountingOutputStream(out: OutputStream): CountingOutputStream(out) {
 
         private val mMessageDigest: MessageDigest
         init {
             mLength = 0
-            mMessageDigest = MessageDigest.getInstance("MD5")
-            mBinaryHash = 0
+            mMessageDigest = MessageDigest.getInstance("SHA-256")
         }
 
         override fun beforeWrite(n: Int) {
@@ -177,7 +195,12 @@ abstract class BinaryData : Parcelable {
             super.close()
             mLength = byteCount
             val bytes = mMessageDigest.digest()
-            mBinaryHash = ByteBuffer.wrap(bytes).int
+            val oldDigest = mBinaryDigest
+            mBinaryDigest = bytes.toHexString()
+            // Copy to allow a listener to unregister
+            ArrayList(mDigestListeners).forEach {
+                it.onDigestChanged(this@BinaryData, oldDigest)
+            }
         }
     }
 
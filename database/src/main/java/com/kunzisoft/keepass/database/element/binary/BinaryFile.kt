@@ -21,8 +21,6 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.os.Parcel
 import android.os.Parcelable
-import android.util.Base64InputStream
-import android.util.Base64OutputStream
 import com.kunzisoft.keepass.utils.readAllBytes
 import java.io.*
 import java.util.zip.GZIPOutputStream
@@ -74,7 +72,7 @@ class BinaryFile : BinaryData {
         return when {
             file != null && file.length() > 0 -> {
                 cipherDecryption.init(Cipher.DECRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                Base64InputStream(CipherInputStream(FileInputStream(file), cipherDecryption), BASE64_FLAG)
+                CipherInputStream(FileInputStream(file), cipherDecryption)
             }
             else -> ByteArrayInputStream(ByteArray(0))
         }
@@ -86,7 +84,7 @@ class BinaryFile : BinaryData {
         return when {
             file != null -> {
                 cipherEncryption.init(Cipher.ENCRYPT_MODE, cipherKey.key, IvParameterSpec(cipherKey.iv))
-                BinaryCountingOutputStream(Base64OutputStream(CipherOutputStream(FileOutputStream(file), cipherEncryption), BASE64_FLAG))
+                BinaryCountingOutputStream(CipherOutputStream(FileOutputStream(file), cipherEncryption))
             }
             else -> throw IOException("Unable to write in an unknown file")
         }
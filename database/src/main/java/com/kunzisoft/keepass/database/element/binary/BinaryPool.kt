@@ -21,12 +21,25 @@ package com.kunzisoft.keepass.database.element.binary
 
 import android.util.Log
 import java.io.IOException
+import java.util.IdentityHashMap
 import kotlin.math.abs
 
 abstract class BinaryPool<T> {
 
     protected val pool = LinkedHashMap<T, BinaryData>()
 
+    // Content-addressed index, digest of the binary data to the keys using it
+    private val digestIndex = HashMap<String, LinkedHashSet<T>>()
+    private val binaryKeys = IdentityHashMap<BinaryData, LinkedHashSet<T>>()
+    private val digestListener = object : BinaryData.DigestListener {
+        override fun onDigestChanged(binaryData: BinaryData, oldDigest: String?) {
+            binaryKeys[binaryData]?.forEach { key ->
+                unindexDigest(oldDigest, key)
+                indexDigest(binaryData.binaryDigest(), key)
+            }
+        }
+    }
+
     // To build unique file id
     private var creationId: Long = System.currentTimeMillis()
     private var poolId: Int = abs(javaClass.simpleName.hashCode())
@@ -57,7 +70,7 @@ abstract class BinaryPool<T> {
         if (key == null)
             return put(value)
         else
-            pool[key] = value
+            putInPool(key, value)
         return key
     }
 
@@ -71,16 +84,62 @@ abstract class BinaryPool<T> {
         if (key == null) {
             key = findUnusedKey()
         }
-        pool[key!!] = binaryData
+        putInPool(key!!, binaryData)
         return key
     }
 
+    private fun putInPool(key: T, binaryData: BinaryData) {
+        pool.put(key, binaryData)?.let { oldBinary ->
+            unindex(key, oldBinary)
+        }
+        index(key, binaryData)
+    }
+
+    private fun removeFromPool(key: T) {
+        pool.remove(key)?.let { oldBinary ->
+            unindex(key, oldBinary)
+        }
+    }
+
+    private fun index(key: T, binaryData: BinaryData) {
+        binaryKeys.getOrPut(binaryData) { LinkedHashSet() }.add(key)
+        binaryData.addDigestListener(digestListener)
+        indexDigest(binaryData.binaryDigest(), key)
+    }
+
+    private fun unindex(key: T, binaryData: BinaryData) {
+        binaryKeys[binaryData]?.let { keys ->
+            keys.remove(key)
+            if (keys.isEmpty()) {
+                binaryKeys.remove(binaryData)
+                binaryData.removeDigestListener(digestListener)
+            }
+        }
+        unindexDigest(binaryData.binaryDigest(), key)
+    }
+
+    private fun indexDigest(digest: String?, key: T) {
+        if (digest != null) {
+            digestIndex.getOrPut(digest) { LinkedHashSet() }.add(key)
+        }
+    }
+
+    private fun unindexDigest(digest: String?, key: T) {
+        if (digest != null) {
+            digestIndex[digest]?.let { keys ->
+                keys.remove(key)
+                if (keys.isEmpty())
+                    digestIndex.remove(digest)
+            }
+        }
+    }
+
     /**
      * Remove a binary from the pool with its [key], the file is not deleted
      */
     @Throws(IOException::class)
     fun remove(key: T) {
-        pool.remove(key)
+        removeFromPool(key)
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
 
@@ -90,7 +149,7 @@ abstract class BinaryPool<T> {
     @Throws(IOException::class)
     fun remove(binaryData: BinaryData) {
         findKey(binaryData)?.let {
-            pool.remove(it)
+            removeFromPool(it)
         }
         // Don't clear attachment here because a file can be used in many BinaryAttachment
     }
@@ -100,6 +159,13 @@ abstract class BinaryPool<T> {
      */
     abstract fun findUnusedKey(): T
 
+    /**
+     * Return the keys linked to [binaryData] in the pool
+     */
+    protected fun getKeys(binaryData: BinaryData): Set<T> {
+        return binaryKeys[binaryData] ?: emptySet()
+    }
+
     /**
      * Return key of [binaryDataToRetrieve] or null if not found
      */
@@ -117,18 +183,19 @@ abstract class BinaryPool<T> {
         }
     }
 
+    /**
+     * Return the key of a binary with the content identified by [digest] or null if not found
+     */
+    fun findKeyByDigest(digest: String): T? {
+        return digestIndex[digest]?.firstOrNull()
+    }
+
     fun isBinaryDuplicate(binaryData: BinaryData?): Boolean {
         try {
             binaryData?.let {
                 if (it.getSize() > 0) {
-                    val searchBinaryMD5 = it.binaryHash()
-                    var i = 0
-                    for ((_, binary) in pool) {
-                        if (binary.binaryHash() == searchBinaryMD5) {
-                            i++
-                            if (i > 1)
-                                return true
-                        }
+                    it.binaryDigest()?.let { digest ->
+                        return (digestIndex[digest]?.size ?: 0) > 1
                     }
                 }
             }
@@ -160,16 +227,13 @@ abstract class BinaryPool<T> {
     protected fun orderedBinariesWithoutDuplication(condition: ((binary: BinaryData) -> Boolean) = { true })
     : List<KeyBinary<T>> {
         val keyBinaryList = ArrayList<KeyBinary<T>>()
+        val keyBinaryByDigest = HashMap<String, KeyBinary<T>>()
         for ((key, binary) in pool) {
             // Don't deduplicate
-            val existentBinary =
+            val digest =
             try {
                 if (binary.getSize() > 0) {
-                    keyBinaryList.find {
-                        val hash0 = it.binary.binaryHash()
-                        val hash1 = binary.binaryHash()
-                        hash0 != 0 && hash1 != 0 && hash0 == hash1
-                    }
+                    binary.binaryDigest()
                 } else {
                     null
                 }
@@ -177,10 +241,12 @@ abstract class BinaryPool<T> {
                 Log.e(TAG, "Unable to check binary hash", e)
                 null
             }
+            val existentBinary = digest?.let { keyBinaryByDigest[it] }
             if (existentBinary == null) {
                 val newKeyBinary = KeyBinary(binary, key)
                 if (condition.invoke(newKeyBinary.binary)) {
                     keyBinaryList.add(newKeyBinary)
+                    digest?.let { keyBinaryByDigest[it] = newKeyBinary }
                 }
             } else {
                 if (condition.invoke(existentBinary.binary)) {
@@ -224,7 +290,10 @@ abstract class BinaryPool<T> {
     }
 
     @Throws(IOException::class)
-    fun clear() {
+    open fun clear() {
+        binaryKeys.keys.forEach { it.removeDigestListener(digestListener) }
+        binaryKeys.clear()
+        digestIndex.clear()
         pool.clear()
     }
 
@@ -27,6 +27,7 @@ import com.kunzisoft.keepass.database.crypto.VariantDictionary
 import com.kunzisoft.keepass.database.crypto.kdf.AesKdf
 import com.kunzisoft.keepass.database.crypto.kdf.KdfEngine
 import com.kunzisoft.keepass.database.crypto.kdf.KdfFactory
+import com.kunzisoft.keepass.database.crypto.kdf.KdfKeyAhead
 import com.kunzisoft.keepass.database.crypto.kdf.KdfParameters
 import com.kunzisoft.keepass.database.element.*
 import com.kunzisoft.keepass.database.element.binary.BinaryData
@@ -60,6 +61,8 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
 
     // To resave the database with same credential when already loaded
     private var mCompositeKey = CompositeKey()
+    // Transformed key of the next save, derived in background
+    private val mKdfKeyAhead = KdfKeyAhead()
 
     var hmacKey: ByteArray? = null
         private set
@@ -104,10 +107,53 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
 
     fun randomizeKdfParameters() {
         kdfParameters?.let {
-            kdfEngine?.randomize(it)
+            // Reuse the parameters of the key already derived if they are still valid
+            val nextParameters = try {
+                mKdfKeyAhead.nextParameters(it)
+            } catch (e: IOException) {
+                null
+            }
+            if (nextParameters != null) {
+                kdfParameters = nextParameters
+            } else {
+                kdfEngine?.randomize(it)
+            }
         }
     }
 
+    /**
+     * Determine if the master key needs the response of a hardware key to be built
+     */
+    fun isHardwareKeyUsed(): Boolean {
+        return mCompositeKey.hardwareKey != null
+    }
+
+    /**
+     * Derive in background the key of the next save with the current master key,
+     * not possible with a hardware key because the challenge depends on the new seed,
+     * and not done with a memory-hard derivation too large to run twice at the same time
+     */
+    fun prepareNextFinalKey(isRAMSufficient: (memoryWanted: Long) -> Boolean) {
+        val keyDerivationFunctionParameters = kdfParameters ?: return
+        val kdfEngine = getKdfEngineFromParameters(keyDerivationFunctionParameters) ?: return
+        if (mCompositeKey.hardwareKey != null)
+            return
+        // The prepared derivation can run at the same time as an inline one
+        val memoryUsage = kdfEngine.getMemoryUsage(keyDerivationFunctionParameters)
+        if (memoryUsage > KEY_AHEAD_MAX_MEMORY
+            || !isRAMSufficient(maxOf(memoryUsage, 0L) * 2))
+            return
+        try {
+            mKdfKeyAhead.prepare(kdfEngine, keyDerivationFunctionParameters, masterKey)
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to prepare the next key", e)
+        }
+    }
+
+    fun clearNextFinalKey() {
+        mKdfKeyAhead.clear()
+    }
+
     override val kdfAvailableList: List<KdfEngine> = listOf(
         KdfFactory.aesKdf,
         KdfFactory.argon2dKdf,
@@ -117,6 +163,8 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     var compressionAlgorithm = CompressionAlgorithm.GZIP
 
     private val mFieldReferenceEngine = FieldReferencesEngine(this)
+    // Flags of the groups by id, invalid as soon as a group is added, updated or removed
+    private val mGroupFlags = HashMap<UUID, GroupFlags>()
     private val mTemplateEngine = TemplateEngineCompatible(this)
 
     var kdbxVersion = UnsignedInt(0)
@@ -140,7 +188,15 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
      * @return true if RecycleBin enable, false if is not available or not enable
      */
     var isRecycleBinEnabled = true
+        set(value) {
+            field = value
+            clearGroupFlags()
+        }
     var recycleBinUUID: UUID = UUID_ZERO
+        set(value) {
+            field = value
+            clearGroupFlags()
+        }
     var recycleBinChanged = DateInstant()
     var entryTemplatesGroup = UUID_ZERO
     var entryTemplatesGroupChanged = DateInstant()
@@ -149,7 +205,10 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     var lastSelectedGroupUUID = UUID_ZERO
     var lastTopVisibleGroupUUID = UUID_ZERO
     var memoryProtection = MemoryProtectionConfig()
-    val deletedObjects = HashSet<DeletedObject>()
+    // Tombstones indexed by the UUID of the deleted object
+    private val mDeletedObjects = LinkedHashMap<UUID, DeletedObject>()
+    val deletedObjects: Collection<DeletedObject>
+        get() = mDeletedObjects.values
     var publicCustomData = VariantDictionary()
     val customData = CustomData()
 
@@ -569,36 +628,6 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         return this.getEntryById(NodeIdUUID(id))
     }
 
-    fun getEntryByTitle(title: String, recursionLevel: Int): EntryKDBX? {
-        return findEntry { entry ->
-            entry.decodeTitleKey(recursionLevel).equals(title, true)
-        }
-    }
-
-    fun getEntryByUsername(username: String, recursionLevel: Int): EntryKDBX? {
-        return findEntry { entry ->
-            entry.decodeUsernameKey(recursionLevel).equals(username, true)
-        }
-    }
-
-    fun getEntryByURL(url: String, recursionLevel: Int): EntryKDBX? {
-        return findEntry { entry ->
-            entry.decodeUrlKey(recursionLevel).equals(url, true)
-        }
-    }
-
-    fun getEntryByPassword(password: String, recursionLevel: Int): EntryKDBX? {
-        return findEntry { entry ->
-            entry.decodePasswordKey(recursionLevel).equals(password, true)
-        }
-    }
-
-    fun getEntryByNotes(notes: String, recursionLevel: Int): EntryKDBX? {
-        return findEntry { entry ->
-            entry.decodeNotesKey(recursionLevel).equals(notes, true)
-        }
-    }
-
     fun getEntryByCustomData(customDataValue: String): EntryKDBX? {
         return findEntry { entry ->
             entry.customData.containsItemWithValue(customDataValue)
@@ -620,7 +649,12 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
                 ?: throw IOException("Unknown key derivation function")
 
             var transformedMasterKey =
-                kdfEngine.transform(masterKey, keyDerivationFunctionParameters)
+                mKdfKeyAhead.consume(keyDerivationFunctionParameters, masterKey)
+                    ?: run {
+                        // Don't derive twice at the same time if a preparation is still running
+                        mKdfKeyAhead.awaitCancelled()
+                        kdfEngine.transform(masterKey, keyDerivationFunctionParameters)
+                    }
             if (transformedMasterKey.size != 32) {
                 transformedMasterKey = HashManager.hashSha256(transformedMasterKey)
             }
@@ -715,23 +749,72 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     }
 
     override fun isInRecycleBin(group: GroupKDBX): Boolean {
-        // To keep compatibility with old V1 databases
-        var currentGroup: GroupKDBX? = group
-        while (currentGroup != null) {
-            if (currentGroup.parent == rootGroup
-                && currentGroup.title.equals(BACKUP_FOLDER_TITLE, ignoreCase = true)
-            ) {
-                return true
+        return getGroupFlags(group).inRecycleBin
+    }
+
+    /**
+     * Determine if [group] or its nearest ancestor with a defined value allows the search
+     */
+    fun isSearchable(group: GroupKDBX): Boolean {
+        return getGroupFlags(group).searchable
+    }
+
+    fun isTemplatesGroup(group: GroupKDBX): Boolean {
+        return isTemplatesGroupEnabled() && group.id == entryTemplatesGroup
+    }
+
+    /**
+     * Flags of [group] inherited from its ancestors, computed once for each group
+     * until the tree or the recycle bin is changed
+     */
+    private fun getGroupFlags(group: GroupKDBX): GroupFlags {
+        synchronized(mGroupFlags) {
+            mGroupFlags[group.id]?.let { return it }
+            val parent = group.parent
+            val parentFlags = parent?.let { getGroupFlags(it) }
+            val inRecycleBin = parentFlags?.inRecycleBin == true
+                    // To keep compatibility with old V1 databases
+                    || (parent == rootGroup
+                        && group.title.equals(BACKUP_FOLDER_TITLE, ignoreCase = true))
+                    || (isRecycleBinEnabled
+                        && recycleBinUUID != UUID_ZERO
+                        && group.id == recycleBinUUID)
+            val searchable = group.enableSearching ?: parentFlags?.searchable ?: true
+            return GroupFlags(inRecycleBin, searchable).also {
+                mGroupFlags[group.id] = it
             }
-            currentGroup = currentGroup.parent
         }
+    }
 
-        return if (recycleBin == null)
-            false
-        else if (!isRecycleBinEnabled)
-            false
-        else
-            group.isContainedIn(recycleBin!!)
+    /**
+     * Compute again the flags of the groups at the next request,
+     * to call after groups of the database are modified in place
+     */
+    fun clearGroupFlags() {
+        synchronized(mGroupFlags) {
+            mGroupFlags.clear()
+        }
+    }
+
+    /**
+     * Compute again the flags of [group] and of its descendants at the next request,
+     * the flags of the other groups don't depend on them and are kept
+     */
+    private fun clearGroupFlags(group: GroupKDBX) {
+        synchronized(mGroupFlags) {
+            if (mGroupFlags.isEmpty())
+                return
+            mGroupFlags.remove(group.id)
+            group.doForEachChild(
+                null,
+                object : NodeHandler<GroupKDBX>() {
+                    override fun operate(node: GroupKDBX): Boolean {
+                        mGroupFlags.remove(node.id)
+                        return true
+                    }
+                }
+            )
+        }
     }
 
     /**
@@ -788,11 +871,18 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     }
 
     fun getDeletedObject(nodeId: NodeId<UUID>): DeletedObject? {
-        return deletedObjects.find { it.uuid == nodeId.id }
+        return mDeletedObjects[nodeId.id]
     }
 
+    /**
+     * Add the tombstone [deletedObject], only the latest deletion of an object is kept
+     */
     fun addDeletedObject(deletedObject: DeletedObject) {
-        this.deletedObjects.add(deletedObject)
+        val currentDeletedObject = mDeletedObjects[deletedObject.uuid]
+        if (currentDeletedObject == null
+            || currentDeletedObject.deletionTime.date.before(deletedObject.deletionTime.date)) {
+            mDeletedObjects[deletedObject.uuid] = deletedObject
+        }
     }
 
     fun addDeletedObject(objectId: UUID) {
@@ -802,19 +892,48 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
     override fun addEntryTo(newEntry: EntryKDBX, parent: GroupKDBX?) {
         super.addEntryTo(newEntry, parent)
         tagPool.put(newEntry.tags)
-        mFieldReferenceEngine.clear()
+        if (attachmentPool.areReferencesCounted)
+            attachmentPool.addReferences(newEntry, getAttachmentKeys(newEntry))
+        mFieldReferenceEngine.addEntry(newEntry)
     }
 
     override fun updateEntry(entry: EntryKDBX) {
+        // The entry can replace another instance of it
+        val oldEntry = getEntryById(entry.nodeId)
         super.updateEntry(entry)
         tagPool.put(entry.tags)
-        mFieldReferenceEngine.clear()
+        if (attachmentPool.areReferencesCounted) {
+            if (oldEntry != null && oldEntry !== entry)
+                attachmentPool.removeReferences(oldEntry)
+            attachmentPool.addReferences(entry, getAttachmentKeys(entry))
+        }
+        mFieldReferenceEngine.updateEntry(entry)
+    }
+
+    override fun addGroupTo(newGroup: GroupKDBX, parent: GroupKDBX?) {
+        super.addGroupTo(newGroup, parent)
+        clearGroupFlags(newGroup)
+    }
+
+    override fun updateGroup(group: GroupKDBX) {
+        // The group can replace another instance of it
+        val oldGroup = getGroupById(group.nodeId)
+        super.updateGroup(group)
+        if (oldGroup != null && oldGroup !== group)
+            clearGroupFlags(oldGroup)
+        clearGroupFlags(group)
+    }
+
+    override fun removeGroupFrom(groupToRemove: GroupKDBX, parent: GroupKDBX?) {
+        super.removeGroupFrom(groupToRemove, parent)
+        clearGroupFlags(groupToRemove)
     }
 
     override fun removeEntryFrom(entryToRemove: EntryKDBX, parent: GroupKDBX?) {
         super.removeEntryFrom(entryToRemove, parent)
         // Do not remove tags from pool, it's only in temp memory
-        mFieldReferenceEngine.clear()
+        attachmentPool.removeReferences(entryToRemove)
+        mFieldReferenceEngine.removeEntry(entryToRemove)
     }
 
     fun buildNewBinaryAttachment(
@@ -828,37 +947,78 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         }.binary
     }
 
-    fun removeUnlinkedAttachment(binary: BinaryData, clear: Boolean) {
-        val listBinaries = ArrayList<BinaryData>()
-        listBinaries.add(binary)
-        removeUnlinkedAttachments(listBinaries, clear)
+    /**
+     * Keys of the attachments of [entry] and of its history
+     */
+    private fun getAttachmentKeys(entry: EntryKDBX): List<Int> {
+        val keys = ArrayList<Int>(entry.binaries.values)
+        entry.history.forEach { history ->
+            keys.addAll(history.binaries.values)
+        }
+        return keys
     }
 
-    fun removeUnlinkedAttachments(clear: Boolean) {
-        removeUnlinkedAttachments(emptyList(), clear)
+    /**
+     * Count the references of the entries to the attachments if not already done,
+     * the counts are then updated each time an entry is added, updated or removed
+     */
+    private fun countAttachmentReferences() {
+        if (!attachmentPool.areReferencesCounted) {
+            attachmentPool.countReferences {
+                rootGroup?.doForEachChild(object : NodeHandler<EntryKDBX>() {
+                    override fun operate(node: EntryKDBX): Boolean {
+                        attachmentPool.addReferences(node, getAttachmentKeys(node))
+                        return true
+                    }
+                }, null)
+            }
+        }
+    }
+
+    /**
+     * Update the references to the attachments of [entry] modified outside of [updateEntry],
+     * for example when its history is changed
+     */
+    fun updateAttachmentReferences(entry: EntryKDBX) {
+        if (attachmentPool.areReferencesCounted)
+            attachmentPool.updateReferences(entry, getAttachmentKeys(entry))
+    }
+
+    /**
+     * Count again the references to the attachments at the next check,
+     * to call after entries of the database are modified in place
+     */
+    fun resetAttachmentReferences() {
+        attachmentPool.clearReferences()
+    }
+
+    /**
+     * Resolve again the field references at the next request,
+     * to call after entries of the database are modified in place
+     */
+    fun resetFieldReferences() {
+        mFieldReferenceEngine.clear()
     }
 
-    private fun removeUnlinkedAttachments(binaries: List<BinaryData>, clear: Boolean) {
+    fun removeUnlinkedAttachment(binary: BinaryData, clear: Boolean) {
+        countAttachmentReferences()
+        if (!attachmentPool.isReferenced(binary)) {
+            removeAttachments(listOf(binary), clear)
+        }
+    }
+
+    fun removeUnlinkedAttachments(clear: Boolean) {
         // TODO check in icon pool
-        // Build binaries to remove with all binaries known
+        countAttachmentReferences()
         val binariesToRemove = ArrayList<BinaryData>()
-        if (binaries.isEmpty()) {
-            attachmentPool.doForEachBinary { _, binary ->
+        attachmentPool.doForEachBinary { _, binary ->
+            if (!attachmentPool.isReferenced(binary))
                 binariesToRemove.add(binary)
-            }
-        } else {
-            binariesToRemove.addAll(binaries)
         }
-        // Remove binaries from the list
-        rootGroup?.doForEachChild(object : NodeHandler<EntryKDBX>() {
-            override fun operate(node: EntryKDBX): Boolean {
-                node.getAttachments(attachmentPool, true).forEach {
-                    binariesToRemove.remove(it.binaryData)
-                }
-                return binariesToRemove.isNotEmpty()
-            }
-        }, null)
-        // Effective removing
+        removeAttachments(binariesToRemove, clear)
+    }
+
+    private fun removeAttachments(binariesToRemove: List<BinaryData>, clear: Boolean) {
         binariesToRemove.forEach {
             try {
                 attachmentPool.remove(it)
@@ -880,16 +1040,22 @@ class DatabaseKDBX : DatabaseVersioned<UUID, UUID, GroupKDBX, EntryKDBX> {
         try {
             super.clearIndexes()
             mFieldReferenceEngine.clear()
+            clearGroupFlags()
         } catch (e: Exception) {
             Log.e(TAG, "Unable to clear cache", e)
         }
     }
 
+    private class GroupFlags(val inRecycleBin: Boolean, val searchable: Boolean)
+
     companion object {
         val TYPE = DatabaseKDBX::class.java
         private val TAG = DatabaseKDBX::class.java.name
 
         private const val DEFAULT_HISTORY_MAX_ITEMS = 10 // -1 unlimited
         private const val DEFAULT_HISTORY_MAX_SIZE = (6 * 1024 * 1024).toLong() // -1 unlimited
+
+        // Maximum memory of a key derivation prepared in advance
+        private const val KEY_AHEAD_MAX_MEMORY = 64L * 1024 * 1024
     }
 }
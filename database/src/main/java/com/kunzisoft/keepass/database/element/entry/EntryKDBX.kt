@@ -36,6 +36,8 @@ import com.kunzisoft.keepass.database.element.node.NodeIdUUID
 import com.kunzisoft.keepass.database.element.node.NodeKDBXInterface
 import com.kunzisoft.keepass.database.element.node.Type
 import com.kunzisoft.keepass.database.element.security.ProtectedString
+import com.kunzisoft.keepass.otp.OtpElement
+import com.kunzisoft.keepass.otp.OtpEntryFields
 import com.kunzisoft.keepass.utils.readParcelableCompat
 import com.kunzisoft.keepass.utils.readStringIntMap
 import com.kunzisoft.keepass.utils.readStringParcelableMap
@@ -52,6 +54,11 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
     private var mDatabase: DatabaseKDBX? = null
     @Transient
     private var mDecodeRef = false
+    // Parsed OTP element, kept while the values of the fields read to parse it are unchanged
+    @Transient
+    private var mOtpElement: OtpElement? = null
+    @Transient
+    private var mOtpFieldValues: Map<String, String?>? = null
 
     override var usageCount = UnsignedLong(0)
     override var locationChanged = DateInstant()
@@ -291,6 +298,24 @@ class EntryKDBX : EntryVersioned<UUID, UUID, GroupKDBX, EntryKDBX>, NodeKDBXInte
         return fields[label]
     }
 
+    /**
+     * Get the OTP element parsed from the fields, the fields are parsed again only if one of them has changed,
+     * the element is shared by the calls and must not be modified
+     */
+    fun getOtpElement(): OtpElement? {
+        mOtpFieldValues?.let { otpFieldValues ->
+            if (otpFieldValues.all { (label, value) -> fields[label]?.toString() == value })
+                return mOtpElement
+        }
+        val otpFieldValues = HashMap<String, String?>()
+        val otpElement = OtpEntryFields.parseFields { label ->
+            fields[label]?.toString().also { otpFieldValues[label] = it }
+        }
+        mOtpFieldValues = otpFieldValues
+        mOtpElement = otpElement
+        return otpElement
+    }
+
     fun getFields(): List<Field> {
         return fields.map { Field(it.key, it.value) }
     }
@@ -21,23 +21,102 @@ package com.kunzisoft.keepass.database.element.entry
 
 import android.util.Log
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
-import com.kunzisoft.keepass.database.element.node.NodeIdUUID
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX.Companion.STR_NOTES
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX.Companion.STR_PASSWORD
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX.Companion.STR_TITLE
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX.Companion.STR_URL
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX.Companion.STR_USERNAME
 import com.kunzisoft.keepass.utils.UuidUtil
-import java.util.concurrent.ConcurrentHashMap
+import java.util.UUID
 
+/**
+ * Resolve the field references of the entries,
+ * the texts are parsed once, the targets are found with an index of the field values
+ * and the resolved references are kept until an entry they depend on is modified
+ */
 class FieldReferencesEngine(private val mDatabase: DatabaseKDBX) {
 
-    // Key : <WantedField>@<SearchIn>:<Text>
-    // Value : content
-    private var refsCache = ConcurrentHashMap<String, String?>()
+    // Key : {REF:<WantedField>@<SearchIn>:<Text>}
+    // Value : content and dependencies
+    private val refsCache = HashMap<String, ResolvedReference>()
+    // Keys of the resolved references by search and by target entry
+    private val refsBySearch = HashMap<String, MutableSet<String>>()
+    private val refsByTarget = HashMap<UUID, MutableSet<String>>()
+    // Keys of the resolved references built with the value of another reference
+    private val dependentRefs = HashMap<String, MutableSet<String>>()
+    // Keys of the references currently resolved, the last one is the deepest
+    private val resolvingRefs = ArrayList<String>()
+
+    private val parsedTexts = object : LinkedHashMap<String, List<TextSegment>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, List<TextSegment>>?): Boolean {
+            return size > MAX_PARSED_TEXTS
+        }
+    }
+
+    // Entries by search key of their field values, built at the first search,
+    // each list is in the order of the entry indexes so that the first entry found is kept
+    private var fieldIndex: HashMap<String, MutableList<EntryKDBX>>? = null
+    private val indexedSearchKeys = HashMap<UUID, List<String>>()
+    private val entryPositions = HashMap<UUID, Int>()
+    private var nextPosition = 0
 
+    private class ResolvedReference(val value: String?,
+                                    val searchKey: String?,
+                                    val targetId: UUID?)
+
+    // Literal text if reference is null, else the full reference
+    private class TextSegment(val text: String, val reference: String?)
+
+    @Synchronized
     fun clear() {
         refsCache.clear()
+        refsBySearch.clear()
+        refsByTarget.clear()
+        dependentRefs.clear()
+        parsedTexts.clear()
+        fieldIndex = null
+        indexedSearchKeys.clear()
+        entryPositions.clear()
+        nextPosition = 0
+    }
+
+    /**
+     * Update the index and the references after the addition of [entry]
+     */
+    @Synchronized
+    fun addEntry(entry: EntryKDBX) {
+        fieldIndex?.let { indexEntry(it, entry) }
+        invalidateSearchesMatching(entry)
+    }
+
+    /**
+     * Update the index and the references after the modification of [entry]
+     */
+    @Synchronized
+    fun updateEntry(entry: EntryKDBX) {
+        fieldIndex?.let {
+            unindexEntry(it, entry.nodeId.id)
+            indexEntry(it, entry)
+        }
+        invalidateTarget(entry.nodeId.id)
+        invalidateSearchesMatching(entry)
+    }
+
+    /**
+     * Update the index and the references after the removal of [entry]
+     */
+    @Synchronized
+    fun removeEntry(entry: EntryKDBX) {
+        fieldIndex?.let { unindexEntry(it, entry.nodeId.id) }
+        entryPositions.remove(entry.nodeId.id)
+        invalidateTarget(entry.nodeId.id)
     }
 
     fun compile(textReference: String, recursionLevel: Int): String {
         return if (recursionLevel >= MAX_RECURSION_DEPTH) {
             ""
+        } else if (!textReference.contains(STR_REF_START)) {
+            textReference
         } else
             fillReferencesPlaceholders(textReference, recursionLevel)
     }
@@ -45,67 +124,94 @@ class FieldReferencesEngine(private val mDatabase: DatabaseKDBX) {
     /**
      * Manage placeholders with {REF:<WantedField>@<SearchIn>:<Text>}
      */
+    @Synchronized
     private fun fillReferencesPlaceholders(textReference: String, recursionLevel: Int): String {
-        var textValue = textReference
+        val textValue = StringBuilder()
+        parseText(textReference).forEach { segment ->
+            val fullReference = segment.reference
+            if (fullReference == null) {
+                textValue.append(segment.text)
+            } else {
+                // Keep the reference if value not found
+                val data = try {
+                    resolveReference(fullReference, recursionLevel + 1)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Error when fill placeholders by reference", e)
+                    null
+                }
+                textValue.append(data ?: fullReference)
+            }
+        }
+        return textValue.toString()
+    }
 
+    private fun parseText(text: String): List<TextSegment> {
+        parsedTexts[text]?.let { return it }
+        val segments = ArrayList<TextSegment>()
         var offset = 0
         var numberInlineRef = 0
-        while (textValue.contains(STR_REF_START)
-                && numberInlineRef <= MAX_INLINE_REF) {
+        while (numberInlineRef < MAX_INLINE_REF) {
+            val start = text.indexOf(STR_REF_START, offset, true)
+            if (start < 0) {
+                break
+            }
+            val end = text.indexOf(STR_REF_END, start + STR_REF_START.length)
+            if (end < 0) {
+                break
+            }
+            if (start > offset) {
+                segments.add(TextSegment(text.substring(offset, start), null))
+            }
+            val reference = text.substring(start + STR_REF_START.length, end)
+            val fullReference = "$STR_REF_START$reference$STR_REF_END"
+            segments.add(TextSegment(fullReference, fullReference))
+            offset = end + STR_REF_END.length
             numberInlineRef++
+        }
+        if (offset < text.length) {
+            segments.add(TextSegment(text.substring(offset), null))
+        }
+        parsedTexts[text] = segments
+        return segments
+    }
 
-            try {
-                textValue = fillReferencesUsingCache(textValue)
-
-                val start = textValue.indexOf(STR_REF_START, offset, true)
-                if (start < 0) {
-                    break
-                }
-                val end = textValue.indexOf(STR_REF_END, offset, true)
-                if (end <= start) {
-                    break
-                }
-
-                val reference = textValue.substring(start + STR_REF_START.length, end)
-                val fullReference = "$STR_REF_START$reference$STR_REF_END"
-
-                if (!refsCache.containsKey(fullReference)) {
-                    val newRecursionLevel = recursionLevel + 1
-                    val result = findReferenceTarget(reference, newRecursionLevel)
-                    val entryFound = result.entry
-                    val data: String? = when (result.wanted) {
-                        'T' -> entryFound?.decodeTitleKey(newRecursionLevel)
-                        'U' -> entryFound?.decodeUsernameKey(newRecursionLevel)
-                        'A' -> entryFound?.decodeUrlKey(newRecursionLevel)
-                        'P' -> entryFound?.decodePasswordKey(newRecursionLevel)
-                        'N' -> entryFound?.decodeNotesKey(newRecursionLevel)
-                        'I' -> UuidUtil.toHexString(entryFound?.nodeId?.id)
-                        else -> null
-                    }
-                    refsCache[fullReference] = data
-                    textValue = fillReferencesUsingCache(textValue)
-                }
+    private fun resolveReference(fullReference: String, recursionLevel: Int): String? {
+        // The reference in progress is built with this one
+        resolvingRefs.lastOrNull()?.let { parentReference ->
+            dependentRefs.getOrPut(fullReference) { HashSet() }.add(parentReference)
+        }
+        refsCache[fullReference]?.let { return it.value }
 
-                offset = end
-            } catch (e: Exception) {
-                Log.e(TAG, "Error when fill placeholders by reference", e)
+        val reference = fullReference.substring(STR_REF_START.length,
+            fullReference.length - STR_REF_END.length)
+        val result = findReferenceTarget(reference)
+        val entryFound = result.entry
+        resolvingRefs.add(fullReference)
+        val data: String? = try {
+            when (result.wanted) {
+                'T' -> entryFound?.decodeTitleKey(recursionLevel)
+                'U' -> entryFound?.decodeUsernameKey(recursionLevel)
+                'A' -> entryFound?.decodeUrlKey(recursionLevel)
+                'P' -> entryFound?.decodePasswordKey(recursionLevel)
+                'N' -> entryFound?.decodeNotesKey(recursionLevel)
+                'I' -> UuidUtil.toHexString(entryFound?.nodeId?.id)
+                else -> null
             }
+        } finally {
+            resolvingRefs.removeAt(resolvingRefs.lastIndex)
         }
-        return textValue
-    }
-
-    private fun fillReferencesUsingCache(text: String): String {
-        var newText = text
-        refsCache.keys.forEach { key ->
-            // Replace by key if value not found
-            newText = newText.replace(key, refsCache[key] ?: key, true)
+        val targetId = entryFound?.nodeId?.id
+        refsCache[fullReference] = ResolvedReference(data, result.searchKey, targetId)
+        result.searchKey?.let { searchKey ->
+            refsBySearch.getOrPut(searchKey) { HashSet() }.add(fullReference)
         }
-        return newText
+        targetId?.let { refsByTarget.getOrPut(it) { HashSet() }.add(fullReference) }
+        return data
     }
 
-    private fun findReferenceTarget(reference: String, recursionLevel: Int): TargetResult {
+    private fun findReferenceTarget(reference: String): TargetResult {
 
-        val targetResult = TargetResult(null, 'J')
+        val targetResult = TargetResult(null, 'J', null)
 
         if (reference.length <= 4) {
             return targetResult
@@ -120,30 +226,151 @@ class FieldReferencesEngine(private val mDatabase: DatabaseKDBX) {
         targetResult.wanted = Character.toUpperCase(reference[0])
         val searchIn = Character.toUpperCase(reference[2])
         val searchQuery = reference.substring(4)
-        targetResult.entry = when (searchIn) {
-            'T' -> mDatabase.getEntryByTitle(searchQuery, recursionLevel)
-            'U' -> mDatabase.getEntryByUsername(searchQuery, recursionLevel)
-            'A' -> mDatabase.getEntryByURL(searchQuery, recursionLevel)
-            'P' -> mDatabase.getEntryByPassword(searchQuery, recursionLevel)
-            'N' -> mDatabase.getEntryByNotes(searchQuery, recursionLevel)
+        when (searchIn) {
+            'T', 'U', 'A', 'P', 'N' -> {
+                val searchKey = buildSearchKey(searchIn, searchQuery)
+                targetResult.searchKey = searchKey
+                targetResult.entry = getFieldIndex()[searchKey]?.firstOrNull()
+            }
             'I' -> {
                 UuidUtil.fromHexString(searchQuery)?.let { uuid ->
-                    mDatabase.getEntryById(NodeIdUUID(uuid))
+                    targetResult.searchKey = buildSearchKey(searchIn, uuid.toString())
+                    targetResult.entry = mDatabase.getEntryById(uuid)
                 }
             }
-            'O' -> mDatabase.getEntryByCustomData(searchQuery)
-            else -> null
+            'O' -> {
+                // Custom data are not indexed, the search is done again after each change
+                targetResult.searchKey = SEARCH_KEY_CUSTOM_DATA
+                targetResult.entry = mDatabase.getEntryByCustomData(searchQuery)
+            }
         }
         return targetResult
     }
 
-    private data class TargetResult(var entry: EntryKDBX?, var wanted: Char)
+    private fun getFieldIndex(): HashMap<String, MutableList<EntryKDBX>> {
+        return fieldIndex ?: HashMap<String, MutableList<EntryKDBX>>().also { index ->
+            mDatabase.getEntryIndexes().forEach { entry ->
+                indexEntry(index, entry)
+            }
+            fieldIndex = index
+        }
+    }
+
+    /**
+     * Index [entry] at its position in the entry indexes,
+     * a modified entry keeps its position and a new entry is placed after the others
+     */
+    private fun indexEntry(index: HashMap<String, MutableList<EntryKDBX>>, entry: EntryKDBX) {
+        val entryId = entry.nodeId.id
+        val position = entryPositions.getOrPut(entryId) { nextPosition++ }
+        val searchKeys = getSearchKeys(entry)
+        searchKeys.forEach { searchKey ->
+            val entries = index.getOrPut(searchKey) { ArrayList(1) }
+            var insertionIndex = entries.size
+            while (insertionIndex > 0
+                && (entryPositions[entries[insertionIndex - 1].nodeId.id] ?: 0) > position) {
+                insertionIndex--
+            }
+            entries.add(insertionIndex, entry)
+        }
+        indexedSearchKeys[entryId] = searchKeys
+    }
+
+    private fun unindexEntry(index: HashMap<String, MutableList<EntryKDBX>>, entryId: UUID) {
+        indexedSearchKeys.remove(entryId)?.forEach { searchKey ->
+            index[searchKey]?.let { entries ->
+                entries.removeAll { it.nodeId.id == entryId }
+                if (entries.isEmpty())
+                    index.remove(searchKey)
+            }
+        }
+    }
+
+    /**
+     * Search keys of the field values of [entry], the values referencing other entries
+     * are indexed as they are written
+     */
+    private fun getSearchKeys(entry: EntryKDBX): List<String> {
+        val searchKeys = ArrayList<String>(SEARCH_FIELDS.size)
+        SEARCH_FIELDS.forEach { (searchIn, fieldName) ->
+            val value = entry.getFieldValue(fieldName)?.toString()
+            if (!value.isNullOrEmpty())
+                searchKeys.add(buildSearchKey(searchIn, value))
+        }
+        return searchKeys
+    }
+
+    /**
+     * Invalidate the resolved references whose search can now find [entry]
+     */
+    private fun invalidateSearchesMatching(entry: EntryKDBX) {
+        if (refsBySearch.isEmpty())
+            return
+        val searchKeys = ArrayList(getSearchKeys(entry))
+        searchKeys.add(buildSearchKey('I', entry.nodeId.id.toString()))
+        searchKeys.add(SEARCH_KEY_CUSTOM_DATA)
+        searchKeys.forEach { searchKey ->
+            refsBySearch[searchKey]?.toList()?.forEach { invalidateReference(it) }
+        }
+    }
+
+    private fun invalidateTarget(entryId: UUID) {
+        refsByTarget[entryId]?.toList()?.forEach { invalidateReference(it) }
+    }
+
+    /**
+     * Remove the resolved reference and the references built with it
+     */
+    private fun invalidateReference(fullReference: String) {
+        refsCache.remove(fullReference)?.let { resolved ->
+            resolved.searchKey?.let { searchKey ->
+                refsBySearch[searchKey]?.let {
+                    it.remove(fullReference)
+                    if (it.isEmpty())
+                        refsBySearch.remove(searchKey)
+                }
+            }
+            resolved.targetId?.let { targetId ->
+                refsByTarget[targetId]?.let {
+                    it.remove(fullReference)
+                    if (it.isEmpty())
+                        refsByTarget.remove(targetId)
+                }
+            }
+        }
+        dependentRefs.remove(fullReference)?.forEach { invalidateReference(it) }
+    }
+
+    private data class TargetResult(var entry: EntryKDBX?, var wanted: Char, var searchKey: String?)
 
     companion object {
         private const val MAX_RECURSION_DEPTH = 10
         private const val MAX_INLINE_REF = 10
+        private const val MAX_PARSED_TEXTS = 256
         private const val STR_REF_START = "{REF:"
         private const val STR_REF_END = "}"
+        private const val SEARCH_KEY_CUSTOM_DATA = "O"
+
+        private val SEARCH_FIELDS = listOf(
+            'T' to STR_TITLE,
+            'U' to STR_USERNAME,
+            'A' to STR_URL,
+            'P' to STR_PASSWORD,
+            'N' to STR_NOTES
+        )
+
+        /**
+         * Key of the search of [text] in the field [searchIn],
+         * the characters are folded like in a case insensitive comparison
+         */
+        private fun buildSearchKey(searchIn: Char, text: String): String {
+            val searchKey = StringBuilder(text.length + 2)
+            searchKey.append(searchIn).append(':')
+            text.forEach { char ->
+                searchKey.append(Character.toLowerCase(Character.toUpperCase(char)))
+            }
+            return searchKey.toString()
+        }
 
         private val TAG = FieldReferencesEngine::class.java.name
     }
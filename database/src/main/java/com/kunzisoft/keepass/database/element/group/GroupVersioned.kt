@@ -23,6 +23,7 @@ import android.os.Parcel
 import com.kunzisoft.keepass.database.element.entry.EntryVersioned
 import com.kunzisoft.keepass.database.element.node.NodeVersioned
 import java.util.*
+import kotlin.math.min
 
 abstract class GroupVersioned
         <
@@ -39,6 +40,9 @@ abstract class GroupVersioned
     @Transient
     private val childEntries = LinkedList<Entry>()
     private var positionIndexChildren = 0
+    // Numbers of child entries by filter, kept until a child of the group or of a subgroup changes
+    @Transient
+    private val childEntriesCounts = HashMap<Int, ChildEntriesCount>()
 
     constructor() : super()
 
@@ -62,6 +66,57 @@ abstract class GroupVersioned
         }
     }
 
+    /**
+     * Number of entries shown by a filter, directly in the group and in all its subgroups,
+     * valid until [validUntil] in milliseconds, time at which a counted entry expires
+     */
+    class ChildEntriesCount(val direct: Int,
+                            val recursive: Int,
+                            val validUntil: Long)
+
+    /**
+     * Get the number of child entries shown by [showEntry], the count is only computed
+     * if a child has changed or if an entry has expired since the last call with the same [filterKey],
+     * [hideExpired] must be true if [showEntry] hides the expired entries
+     */
+    fun getNumberOfChildEntries(filterKey: Int,
+                                hideExpired: Boolean,
+                                showEntry: (Entry) -> Boolean): ChildEntriesCount {
+        val currentTime = System.currentTimeMillis()
+        childEntriesCounts[filterKey]?.let { count ->
+            if (currentTime < count.validUntil)
+                return count
+        }
+        var direct = 0
+        var validUntil = Long.MAX_VALUE
+        childEntries.forEach { entry ->
+            if (showEntry(entry))
+                direct++
+            if (hideExpired && entry.expires && !entry.isCurrentlyExpires)
+                validUntil = min(validUntil, entry.expiryTime.date.time)
+        }
+        var recursive = direct
+        childGroups.forEach { group ->
+            val count = group.getNumberOfChildEntries(filterKey, hideExpired, showEntry)
+            recursive += count.recursive
+            validUntil = min(validUntil, count.validUntil)
+        }
+        return ChildEntriesCount(direct, recursive, validUntil).also {
+            childEntriesCounts[filterKey] = it
+        }
+    }
+
+    /**
+     * Clear the numbers of child entries of the group and of its parents, to call when a child changes
+     */
+    private fun invalidateNumberOfChildEntries() {
+        var group: GroupVersioned<GroupId, EntryId, Group, Entry>? = this
+        while (group != null) {
+            group.childEntriesCounts.clear()
+            group = group.parent
+        }
+    }
+
     override var title: String
         get() = titleGroup
         set(value) { titleGroup = value }
@@ -91,6 +146,7 @@ abstract class GroupVersioned
         positionIndexChildren++
         group.nodeIndexInParentForNaturalOrder = positionIndexChildren
         this.childGroups.add(group)
+        invalidateNumberOfChildEntries()
     }
 
     override fun addChildEntry(entry: Entry) {
@@ -99,6 +155,7 @@ abstract class GroupVersioned
         positionIndexChildren++
         entry.nodeIndexInParentForNaturalOrder = positionIndexChildren
         this.childEntries.add(entry)
+        invalidateNumberOfChildEntries()
     }
 
     override fun updateChildGroup(group: Group) {
@@ -107,6 +164,7 @@ abstract class GroupVersioned
             val oldGroup = this.childGroups.removeAt(index)
             group.nodeIndexInParentForNaturalOrder = oldGroup.nodeIndexInParentForNaturalOrder
             this.childGroups.add(index, group)
+            invalidateNumberOfChildEntries()
         }
     }
 
@@ -116,20 +174,24 @@ abstract class GroupVersioned
             val oldEntry = this.childEntries.removeAt(index)
             entry.nodeIndexInParentForNaturalOrder = oldEntry.nodeIndexInParentForNaturalOrder
             this.childEntries.add(index, entry)
+            invalidateNumberOfChildEntries()
         }
     }
 
     override fun removeChildGroup(group: Group) {
         this.childGroups.remove(group)
+        invalidateNumberOfChildEntries()
     }
 
     override fun removeChildEntry(entry: Entry) {
         this.childEntries.remove(entry)
+        invalidateNumberOfChildEntries()
     }
 
     override fun removeChildren() {
         this.childGroups.clear()
         this.childEntries.clear()
+        invalidateNumberOfChildEntries()
     }
 
     override fun nodeIndexInParentForNaturalOrder(): Int {
@@ -19,28 +19,26 @@
  */
 package com.kunzisoft.keepass.database.file
 
-import org.joda.time.DateTime
-import org.joda.time.DateTimeZone
-import org.joda.time.Duration
 import java.util.*
 
 object DateKDBXUtil {
 
-    private val dotNetEpoch = DateTime(1, 1, 1, 0, 0, 0, DateTimeZone.UTC)
-    private val javaEpoch = DateTime(1970, 1, 1, 0, 0, 0, DateTimeZone.UTC)
-    private val epochOffset = (javaEpoch.millis - dotNetEpoch.millis) / 1000L
+    // Seconds between the .NET epoch (0001-01-01) and the Java epoch (1970-01-01), in UTC
+    private const val EPOCH_OFFSET = 62135596800L
+    // Greatest number of seconds which can be converted in milliseconds since the Java epoch
+    private const val MAX_SECONDS = Long.MAX_VALUE / 1000L
 
-    fun convertKDBX4Time(seconds: Long): Date {
-        val dt = dotNetEpoch.plus(seconds * 1000L)
+    /**
+     * Convert [seconds] since the .NET epoch in milliseconds since the Java epoch, without allocation
+     */
+    fun convertKDBX4TimeToMillis(seconds: Long): Long {
         // Switch corrupted dates to a more recent date that won't cause issues on the client
-        return if (dt.isBefore(javaEpoch)) {
-            javaEpoch.toDate()
-        } else dt.toDate()
+        if (seconds < EPOCH_OFFSET)
+            return 0L
+        return (seconds - EPOCH_OFFSET).coerceAtMost(MAX_SECONDS) * 1000L
     }
 
     fun convertDateToKDBX4Time(date: Date): Long {
-        val duration = Duration(javaEpoch, DateTime(date))
-        val seconds = duration.millis / 1000L
-        return seconds + epochOffset
+        return date.time / 1000L + EPOCH_OFFSET
     }
-}
\ No newline at end of file
+}
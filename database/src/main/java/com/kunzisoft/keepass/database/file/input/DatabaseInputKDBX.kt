@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.database.file.input
 
 import android.util.Base64
+import android.util.Base64OutputStream
 import android.util.Log
 import com.kunzisoft.encrypt.StreamCipher
 import com.kunzisoft.keepass.database.crypto.CipherEngine
@@ -43,8 +44,10 @@ import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX
 import com.kunzisoft.keepass.database.file.DatabaseHeaderKDBX.Companion.FILE_VERSION_40
 import com.kunzisoft.keepass.database.file.DatabaseKDBXXML
 import com.kunzisoft.keepass.database.file.DateKDBXUtil
+import com.kunzisoft.keepass.stream.BlockCipherInputStream
 import com.kunzisoft.keepass.stream.HashedBlockInputStream
 import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.PipelinedInputStream
 import com.kunzisoft.keepass.tasks.ProgressTaskUpdater
 import com.kunzisoft.keepass.utils.*
 import org.xmlpull.v1.XmlPullParser
@@ -52,13 +55,13 @@ import org.xmlpull.v1.XmlPullParserException
 import org.xmlpull.v1.XmlPullParserFactory
 import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
 import java.io.UnsupportedEncodingException
 import java.nio.charset.Charset
 import java.text.ParseException
 import java.util.*
 import java.util.zip.GZIPInputStream
 import javax.crypto.Cipher
-import javax.crypto.CipherInputStream
 import javax.crypto.Mac
 import kotlin.math.min
 
@@ -94,16 +97,32 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
     private var entryCustomDataKey: String? = null
     private var entryCustomDataValue: String? = null
 
+    // Reused to decode the dates and the UUIDs without allocation
+    private val textStartAndLength = IntArray(2)
+    private val decodedBuffer = ByteArray(16)
+
     private var isRAMSufficient: (memoryWanted: Long) -> Boolean = {true}
 
+    private var pipelinedReading = false
+
     fun setMethodToCheckIfRAMIsSufficient(method: (memoryWanted: Long) -> Boolean) {
         this.isRAMSufficient = method
     }
 
+    /**
+     * Read the KDBX 4 content with a pipeline,
+     * HMAC verification, decryption and inflate / XML parsing are done on separate threads
+     * and the HMAC blocks are verified ahead concurrently
+     */
+    fun setPipelinedReading(pipelined: Boolean) {
+        this.pipelinedReading = pipelined
+    }
+
     @Throws(DatabaseInputException::class)
     override fun openDatabase(databaseInputStream: InputStream,
                               progressTaskUpdater: ProgressTaskUpdater?,
                               assignMasterKey: (() -> Unit)): DatabaseKDBX {
+        var pipelineStream: InputStream? = null
         try {
             startKeyTimer(progressTaskUpdater)
 
@@ -136,7 +155,7 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             val plainInputStream: InputStream
             if (mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
 
-                val dataDecrypted = CipherInputStream(databaseInputStream, cipher)
+                val dataDecrypted = BlockCipherInputStream(databaseInputStream, cipher)
                 val storedStartBytes: ByteArray?
                 try {
                     storedStartBytes = dataDecrypted.readBytesLength(32)
@@ -173,9 +192,20 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
                     throw InvalidCredentialsDatabaseException()
                 }
 
-                val hmIs = HmacBlockInputStream(databaseInputStream, true, hmacKey)
-
-                plainInputStream = CipherInputStream(hmIs, cipher)
+                val hmIs = HmacBlockInputStream(databaseInputStream, true, hmacKey,
+                    if (pipelinedReading) HmacBlockInputStream.DEFAULT_READ_AHEAD_BLOCKS else 0)
+
+                plainInputStream = if (pipelinedReading) {
+                    PipelinedInputStream(
+                        BlockCipherInputStream(
+                            PipelinedInputStream(hmIs, "KDBX HMAC verification"),
+                            cipher
+                        ),
+                        "KDBX decryption"
+                    ).also { pipelineStream = it }
+                } else {
+                    BlockCipherInputStream(hmIs, cipher)
+                }
             }
 
             val inputStreamXml: InputStream = when (mDatabase.compressionAlgorithm) {
@@ -209,6 +239,13 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             if (e.message?.contains("Hash failed with code") == true)
                 throw KDFMemoryDatabaseException(e)
             throw DatabaseInputException(e)
+        } finally {
+            // Stop the pipeline threads
+            try {
+                pipelineStream?.close()
+            } catch (e: IOException) {
+                Log.w(TAG, "Unable to close the reading pipeline", e)
+            }
         }
 
         return mDatabase
@@ -661,7 +698,6 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
 
             KdbContext.RootDeletedObjects -> if (name.equals(DatabaseKDBXXML.ElemDeletedObject, ignoreCase = true)) {
                 ctxDeletedObject = DeletedObject()
-                ctxDeletedObject?.let { mDatabase.addDeletedObject(it) }
 
                 return switchContext(ctx, KdbContext.DeletedObject, xpp)
             } else {
@@ -813,6 +849,8 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
         } else if (ctx == KdbContext.RootDeletedObjects && name.equals(DatabaseKDBXXML.ElemDeletedObjects, ignoreCase = true)) {
             return KdbContext.Root
         } else if (ctx == KdbContext.DeletedObject && name.equals(DatabaseKDBXXML.ElemDeletedObject, ignoreCase = true)) {
+            // Indexed once the UUID is read
+            ctxDeletedObject?.let { mDatabase.addDeletedObject(it) }
             ctxDeletedObject = null
             return KdbContext.RootDeletedObjects
         } else {
@@ -826,25 +864,19 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
 
     @Throws(IOException::class, XmlPullParserException::class)
     private fun readDateInstant(xpp: XmlPullParser): DateInstant {
+        if (!mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
+            // Seconds since the .NET epoch in 8 bytes, missing bytes are zeros
+            decodedBuffer.fill(0)
+            val seconds = if (readBase64(xpp, decodedBuffer) < 0) 0L else bytes64ToLong(decodedBuffer)
+            return DateInstant(DateKDBXUtil.convertKDBX4TimeToMillis(seconds))
+        }
+
         val sDate = readString(xpp)
         var utcDate: Date? = null
-
-        if (mDatabase.kdbxVersion.isBefore(FILE_VERSION_40)) {
-            try {
-                utcDate = DatabaseKDBXXML.DateFormatter.parse(sDate)
-            } catch (e: ParseException) {
-                // Catch with null test below
-            }
-        } else {
-            var buf = Base64.decode(sDate, BASE64_FLAG)
-            if (buf.size != 8) {
-                val buf8 = ByteArray(8)
-                System.arraycopy(buf, 0, buf8, 0, min(buf.size, 8))
-                buf = buf8
-            }
-
-            val seconds = bytes64ToLong(buf)
-            utcDate = DateKDBXUtil.convertKDBX4Time(seconds)
+        try {
+            utcDate = DatabaseKDBXXML.DateFormatter.parse(sDate)
+        } catch (e: ParseException) {
+            // Catch with null test below
         }
 
         return DateInstant(utcDate ?: Date(0L))
@@ -895,19 +927,17 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
 
     @Throws(IOException::class, XmlPullParserException::class)
     private fun readUuid(xpp: XmlPullParser): UUID {
-        val encoded = readString(xpp)
+        val length = readBase64(xpp, decodedBuffer)
 
-        if (encoded.isEmpty()) {
+        if (length == 0) {
             return DatabaseVersioned.UUID_ZERO
         }
 
-        return try {
-            val buf = Base64.decode(encoded, BASE64_FLAG)
-            bytes16ToUuid(buf)
-        } catch (e: Exception) {
-            Log.e(TAG, "Unable to read base 64 UUID, create a random one", e)
-            UUID.randomUUID()
+        if (length < 16) {
+            Log.e(TAG, "Unable to read base 64 UUID, create a random one")
+            return UUID.randomUUID()
         }
+        return bytes16ToUuid(decodedBuffer)
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
@@ -999,7 +1029,8 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
     @Throws(IOException::class, XmlPullParserException::class)
     private fun createBinary(binaryId: Int?, xpp: XmlPullParser): BinaryData? {
         var compressed = false
-        var protected = true
+        // Null if not flagged in the XML
+        var protected: Boolean? = null
 
         if (xpp.attributeCount > 0) {
             val compress = xpp.getAttributeValue(null, DatabaseKDBXXML.AttrCompressed)
@@ -1013,25 +1044,114 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
             }
         }
 
-        val base64 = readString(xpp)
-        if (base64.isEmpty())
-            return null
+        // Read the base 64 text directly from the parser buffer to not copy it
+        var binaryAttachment: BinaryData? = null
+        var eventType = xpp.next()
+        if (eventType == XmlPullParser.TEXT) {
+            val startAndLength = IntArray(2)
+            val base64Chars = xpp.getTextCharacters(startAndLength)
+            val start = startAndLength[0]
+            val length = startAndLength[1]
+            if (length > 0) {
+                // Build the new binary and compress
+                binaryAttachment = mDatabase.buildNewBinaryAttachment(
+                        isRAMSufficient.invoke(length.toLong()), compressed, protected ?: true, binaryId)
+                try {
+                    binaryAttachment.getOutputDataStream(mDatabase.binaryCache).use { outputStream ->
+                        // Protected stream cipher only applied if flagged in the XML
+                        val decodedStream = if (protected == true) {
+                            RandomStreamOutputStream(outputStream)
+                        } else {
+                            outputStream
+                        }
+                        Base64OutputStream(decodedStream, BASE64_FLAG or Base64.NO_CLOSE, false).use { base64Stream ->
+                            writeChars(base64Chars, start, length, base64Stream)
+                        }
+                    }
+                } catch (e: Exception) {
+                    // The inner random stream is partially consumed, the next protected values can't be read
+                    if (protected == true)
+                        throw IOException("Unable to read protected base 64 attachment", e)
+                    Log.e(TAG, "Unable to read base 64 attachment", e)
+                    binaryAttachment.isCorrupted = true
+                    binaryAttachment.getOutputDataStream(mDatabase.binaryCache).use { outputStream ->
+                        writeChars(base64Chars, start, length, outputStream)
+                    }
+                }
+            }
+            eventType = xpp.next()
+        }
+        if (eventType != XmlPullParser.END_TAG) {
+            xpp.nextTag()
+        }
+        return binaryAttachment
+    }
 
-        // Build the new binary and compress
-        val binaryAttachment = mDatabase.buildNewBinaryAttachment(
-                isRAMSufficient.invoke(base64.length.toLong()), compressed, protected, binaryId)
-        try {
-            binaryAttachment.getOutputDataStream(mDatabase.binaryCache).use { outputStream ->
-                outputStream.write(Base64.decode(base64, BASE64_FLAG))
+    /**
+     * Write the ASCII [chars] by chunks in [outputStream], to keep a bounded memory
+     */
+    @Throws(IOException::class)
+    private fun writeChars(chars: CharArray, start: Int, length: Int, outputStream: OutputStream) {
+        val buffer = ByteArray(min(length, DEFAULT_BUFFER_SIZE))
+        var offset = start
+        val end = start + length
+        while (offset < end) {
+            val count = min(end - offset, buffer.size)
+            for (i in 0 until count) {
+                buffer[i] = chars[offset + i].code.toByte()
             }
-        } catch (e: Exception) {
-            Log.e(TAG, "Unable to read base 64 attachment", e)
-            binaryAttachment.isCorrupted = true
-            binaryAttachment.getOutputDataStream(mDatabase.binaryCache).use { outputStream ->
-                outputStream.write(base64.toByteArray())
+            outputStream.write(buffer, 0, count)
+            offset += count
+        }
+    }
+
+    /**
+     * Unprotect the data written with the inner random stream
+     */
+    private inner class RandomStreamOutputStream(private val outputStream: OutputStream) : OutputStream() {
+        // Reused for each write, the data are written by chunks of the base 64 stream
+        private var buffer = ByteArray(0)
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            val cipher = randomStream ?: return
+            if (len > 0) {
+                if (buffer.size < len) {
+                    buffer = ByteArray(len)
+                }
+                cipher.processBytes(b, off, len, buffer)
+                outputStream.write(buffer, 0, len)
             }
         }
-        return binaryAttachment
+    }
+
+    /**
+     * Decode the base 64 text of the current element in [output],
+     * directly from the parser buffer when the text is not protected, like [readString].
+     * Return the number of bytes decoded or -1 if the text is not valid base 64
+     */
+    @Throws(IOException::class, XmlPullParserException::class)
+    private fun readBase64(xpp: XmlPullParser, output: ByteArray): Int {
+        readProtectedBase64String(xpp)?.let { buf ->
+            val protectedChars = String(buf, Charset.forName("UTF-8")).toCharArray()
+            return base64CharsToBytes(protectedChars, 0, protectedChars.size, output)
+        }
+
+        var decoded = 0
+        var eventType = xpp.next()
+        if (eventType == XmlPullParser.TEXT) {
+            val base64Chars = xpp.getTextCharacters(textStartAndLength)
+            decoded = base64CharsToBytes(base64Chars,
+                    textStartAndLength[0], textStartAndLength[1], output)
+            eventType = xpp.next()
+        }
+        if (eventType != XmlPullParser.END_TAG) {
+            xpp.nextTag()
+        }
+        return decoded
     }
 
     @Throws(IOException::class, XmlPullParserException::class)
@@ -1076,6 +1196,8 @@ class DatabaseInputKDBX(database: DatabaseKDBX)
     }
 
     companion object {
+        // Memory used by the chunks of the pipeline stages and the HMAC blocks read ahead
+        const val PIPELINED_READING_MEMORY = 8L * 1024 * 1024
 
         private val TAG = DatabaseInputKDBX::class.java.name
 
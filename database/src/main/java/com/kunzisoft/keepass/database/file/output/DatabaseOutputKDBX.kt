@@ -20,6 +20,7 @@
 package com.kunzisoft.keepass.database.file.output
 
 import android.util.Base64
+import android.util.Base64OutputStream
 import android.util.Log
 import android.util.Xml
 import com.kunzisoft.encrypt.StreamCipher
@@ -487,10 +488,13 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX)
                     xml.attribute(null, DatabaseKDBXXML.AttrCompressed, DatabaseKDBXXML.ValTrue)
                 }
                 try {
-                    // Write the XML
+                    // Write the XML, binaries are stored raw, encode them only here
                     binary.getInputDataStream(binaryCache).use { inputStream ->
-                        inputStream.readAllBytes { buffer ->
-                            xml.text(String(Base64.encode(buffer, BASE64_FLAG)))
+                        Base64OutputStream(XmlTextOutputStream(),
+                            BASE64_FLAG or Base64.NO_CLOSE).use { outputStream ->
+                            inputStream.readAllBytes { buffer ->
+                                outputStream.write(buffer)
+                            }
                         }
                     }
                 } catch (e: Exception) {
@@ -763,6 +767,19 @@ class DatabaseOutputKDBX(private val mDatabaseKDBX: DatabaseKDBX)
         return stringBuilder.toString()
     }
 
+    /**
+     * Write the ASCII bytes received as text of the current XML tag
+     */
+    private inner class XmlTextOutputStream : OutputStream() {
+        override fun write(b: Int) {
+            xml.text(b.toChar().toString())
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            xml.text(String(b, off, len, Charsets.US_ASCII))
+        }
+    }
+
     companion object {
         private val TAG = DatabaseOutputKDBX::class.java.name
     }
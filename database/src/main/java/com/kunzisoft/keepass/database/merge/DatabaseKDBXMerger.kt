@@ -22,6 +22,7 @@ package com.kunzisoft.keepass.database.merge
 import com.kunzisoft.keepass.database.element.Attachment
 import com.kunzisoft.keepass.database.element.CustomData
 import com.kunzisoft.keepass.database.element.DateInstant
+import com.kunzisoft.keepass.database.element.DeletedObject
 import com.kunzisoft.keepass.database.element.database.DatabaseKDB
 import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
 import com.kunzisoft.keepass.database.element.entry.EntryKDB
@@ -40,6 +41,9 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
 
     var isRAMSufficient: (memoryWanted: Long) -> Boolean = {true}
 
+    // Keys of the attachments of the database to merge, to the keys of the current pool
+    private val mergedAttachmentKeys = HashMap<Int, Int>()
+
     /**
      * Merge a KDB database in a KDBX database, by default all data are copied from the KDB
      */
@@ -73,6 +77,10 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
                 }
             }
         )
+        // Entries are updated in place during the merge
+        database.resetAttachmentReferences()
+        database.resetFieldReferences()
+        database.clearGroupFlags()
     }
 
     /**
@@ -185,6 +193,7 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
      * To make a merge as accurate as possible
      */
     fun merge(databaseToMerge: DatabaseKDBX) {
+        mergedAttachmentKeys.clear()
 
         // Merge settings
         if (database.nameChanged.date.before(databaseToMerge.nameChanged.date)) {
@@ -328,7 +337,15 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
                 database.removeCustomIcon(deletedObjectId)
             }
             // Attachments are removed and optimized during the database save
+            // Keep the tombstone to propagate the deletion in the next merges
+            database.addDeletedObject(
+                DeletedObject(deletedObjectId, DateInstant(deletedObject.deletionTime))
+            )
         }
+        // Entries are updated in place during the merge
+        database.resetAttachmentReferences()
+        database.resetFieldReferences()
+        database.clearGroupFlags()
     }
 
     /**
@@ -355,7 +372,8 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
     }
 
     /**
-     * Utility method to merge a KDBX entry
+     * Utility method to merge a KDBX entry,
+     * the entry to merge is only copied if it's newer than the current one
      */
     private fun mergeEntry(nodeToMerge: EntryKDBX, databaseToMerge: DatabaseKDBX) {
         val entryId = nodeToMerge.nodeId
@@ -368,49 +386,24 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
             srcEntryToMerge.parent?.nodeId?.let {
                 parentEntryToMerge = database.getGroupById(it)
             }
-            val entryToMerge = EntryKDBX().apply {
-                updateWith(srcEntryToMerge, copyHistory = true, updateParents = false)
-            }
-
-            // Copy attachments in main pool
-            val newAttachments = mutableListOf<Attachment>()
-            entryToMerge.getAttachments(databaseToMerge.attachmentPool).forEach { attachment ->
-                val binarySize = attachment.binaryData.getSize()
-                val binaryData = database.buildNewBinaryAttachment(
-                    isRAMSufficient.invoke(binarySize),
-                    attachment.binaryData.isCompressed,
-                    attachment.binaryData.isProtected
-                )
-                attachment.binaryData.getInputDataStream(databaseToMerge.binaryCache).use { inputStream ->
-                    binaryData.getOutputDataStream(database.binaryCache).use { outputStream ->
-                        inputStream.readAllBytes { buffer ->
-                            outputStream.write(buffer)
-                        }
-                    }
-                }
-                newAttachments.add(Attachment(attachment.name, binaryData))
-            }
-            entryToMerge.removeAttachments()
-            newAttachments.forEach { newAttachment ->
-                entryToMerge.putAttachment(newAttachment, database.attachmentPool)
-            }
 
             if (entry == null) {
                 // If it's a deleted object, but another instance was updated
                 // If entry parent to add exists and in current database
                 if ((deletedObject == null
                     || deletedObject.deletionTime.date
-                        .before(entryToMerge.lastModificationTime.date))
+                        .before(srcEntryToMerge.lastModificationTime.date))
                     && parentEntryToMerge != null) {
-                    database.addEntryTo(entryToMerge, parentEntryToMerge)
+                    database.addEntryTo(copyEntry(srcEntryToMerge, databaseToMerge), parentEntryToMerge)
                 }
             } else {
                 // Merge independently custom data
-                mergeCustomData(entry.customData, entryToMerge.customData)
+                mergeCustomData(entry.customData, srcEntryToMerge.customData)
                 // Merge by modification time
                 if (entry.lastModificationTime.date
-                        .before(entryToMerge.lastModificationTime.date)
+                        .before(srcEntryToMerge.lastModificationTime.date)
                 ) {
+                    val entryToMerge = copyEntry(srcEntryToMerge, databaseToMerge)
                     addHistory(entry, entryToMerge)
                     if (parentEntryToMerge == entry.parent) {
                         entry.updateWith(entryToMerge, copyHistory = true, updateParents = false)
@@ -422,26 +415,85 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
                         }
                     }
                 } else if (entry.lastModificationTime.date
-                        .after(entryToMerge.lastModificationTime.date)
+                        .after(srcEntryToMerge.lastModificationTime.date)
                 ) {
-                    addHistory(entryToMerge, entry)
+                    // Only copy the versions of the entry to merge not yet in the history
+                    addHistory(srcEntryToMerge, entry) { history ->
+                        copyEntry(history, databaseToMerge, copyHistory = false)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Utility method to copy [srcEntryToMerge] and its history in the current database,
+     * attachments are retrieved by content in the current pool and only copied if not present
+     */
+    private fun copyEntry(srcEntryToMerge: EntryKDBX,
+                          databaseToMerge: DatabaseKDBX,
+                          copyHistory: Boolean = true): EntryKDBX {
+        return EntryKDBX().apply {
+            updateWith(srcEntryToMerge, copyHistory = false, updateParents = false)
+            binaries.clear()
+            srcEntryToMerge.binaries.forEach { (name, binaryKeyToMerge) ->
+                mergeAttachment(binaryKeyToMerge, databaseToMerge)?.let { binaryKey ->
+                    binaries[name] = binaryKey
+                }
+            }
+            if (copyHistory) {
+                srcEntryToMerge.history.forEach { history ->
+                    addEntryToHistory(copyEntry(history, databaseToMerge, copyHistory = false))
+                }
+            }
+        }
+    }
+
+    /**
+     * Utility method to retrieve in the current pool the key of the attachment [binaryKeyToMerge],
+     * the binary data is copied only if no attachment with the same content exists
+     */
+    private fun mergeAttachment(binaryKeyToMerge: Int, databaseToMerge: DatabaseKDBX): Int? {
+        mergedAttachmentKeys[binaryKeyToMerge]?.let {
+            return it
+        }
+        val binaryDataToMerge = databaseToMerge.attachmentPool[binaryKeyToMerge]
+            ?: return null
+        val binaryKey = binaryDataToMerge.binaryDigest()?.let { digest ->
+            database.attachmentPool.findKeyByDigest(digest)
+        } ?: run {
+            val binaryData = database.buildNewBinaryAttachment(
+                isRAMSufficient.invoke(binaryDataToMerge.getSize()),
+                binaryDataToMerge.isCompressed,
+                binaryDataToMerge.isProtected
+            )
+            binaryDataToMerge.getInputDataStream(databaseToMerge.binaryCache).use { inputStream ->
+                binaryData.getOutputDataStream(database.binaryCache).use { outputStream ->
+                    inputStream.readAllBytes { buffer ->
+                        outputStream.write(buffer)
+                    }
                 }
             }
+            database.attachmentPool.put(binaryData)
         }
+        mergedAttachmentKeys[binaryKeyToMerge] = binaryKey
+        return binaryKey
     }
 
     /**
      * Utility method to merge an history from an [entryA] to an [entryB],
-     * [entryB] is modified
+     * [entryB] is modified, each version of [entryA] added is built with [copy]
      */
-    private fun addHistory(entryA: EntryKDBX, entryB: EntryKDBX) {
+    private fun addHistory(entryA: EntryKDBX,
+                           entryB: EntryKDBX,
+                           copy: (EntryKDBX) -> EntryKDBX = { it }) {
         // Keep entry as history if already not present
         entryA.history.forEach { history ->
             // If history not present
             if (!entryB.history.any {
                     it.lastModificationTime == history.lastModificationTime
                 }) {
-                entryB.addEntryToHistory(history)
+                entryB.addEntryToHistory(copy(history))
             }
         }
         // Last entry not present
@@ -449,7 +501,7 @@ class DatabaseKDBXMerger(private var database: DatabaseKDBX) {
                 it.lastModificationTime == entryA.lastModificationTime
             } == null) {
             val history = EntryKDBX().apply {
-                updateWith(entryA, copyHistory = false, updateParents = false)
+                updateWith(copy(entryA), copyHistory = false, updateParents = false)
                 parent = null
             }
             entryB.addEntryToHistory(history)
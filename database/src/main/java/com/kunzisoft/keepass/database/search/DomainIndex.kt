@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *     
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.node.NodeId
+import java.util.*
+
+/**
+ * Index from the web domains and application ids found in the entry strings to entry ids,
+ * to answer the auto search of autofill and selection requests without scanning all entries.
+ * Each domain is also indexed by its parent domains, so that a registrable domain
+ * retrieves the entries of its sub domains.
+ * Unlike a substring search, a domain only matches on label boundaries:
+ * "example.com" doesn't retrieve "example.com.au" or "my-example.com",
+ * and the application id "com.example.app" doesn't retrieve "com.example.application",
+ * which are other sites and other applications.
+ */
+class DomainIndex : EntryIndex<String>() {
+
+    override fun extractKeys(entry: Entry, keys: MutableSet<String>): Boolean {
+        var referenceFound = false
+        val indexField: (String) -> Unit = { value ->
+            if (containsReference(value))
+                referenceFound = true
+            addDomains(value, keys)
+        }
+        // Same fields as the search info
+        indexField(entry.title)
+        indexField(entry.url)
+        indexField(entry.notes)
+        entry.getExtraFields().forEach { field ->
+            indexField(field.protectedValue.toString())
+        }
+        return !referenceFound
+    }
+
+    /**
+     * Return the ids of the entries containing the domain or application id [searchInfoString],
+     * or null if it's not a domain or an application id
+     */
+    fun getCandidates(searchInfoString: String): Set<NodeId<UUID>>? {
+        val domain = normalize(searchInfoString)
+        if (!isDomain(domain))
+            return null
+        return getCandidates(listOf(domain))
+    }
+
+    companion object {
+
+        private fun isDomainChar(char: Char): Boolean {
+            return char in 'a'..'z'
+                    || char in 'A'..'Z'
+                    || char in '0'..'9'
+                    || char == '-' || char == '_' || char == '.'
+        }
+
+        private fun normalize(value: String): String {
+            return value.trim('.').lowercase(Locale.ENGLISH)
+        }
+
+        private fun isDomain(value: String): Boolean {
+            return value.contains('.') && value.all { isDomainChar(it) }
+        }
+
+        /**
+         * Add each dotted token of [value] and its parent domains
+         */
+        private fun addDomains(value: String, domains: MutableSet<String>) {
+            var start = 0
+            while (start < value.length) {
+                if (!isDomainChar(value[start])) {
+                    start++
+                    continue
+                }
+                var end = start
+                while (end < value.length && isDomainChar(value[end]))
+                    end++
+                val token = normalize(value.substring(start, end))
+                if (isDomain(token)) {
+                    var domain = token
+                    while (domain.contains('.')) {
+                        domains.add(domain)
+                        domain = domain.substringAfter('.')
+                    }
+                }
+                start = end
+            }
+        }
+    }
+}
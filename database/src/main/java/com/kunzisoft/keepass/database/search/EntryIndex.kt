@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *     
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.node.NodeHandler
+import com.kunzisoft.keepass.database.element.node.NodeId
+import java.util.*
+
+/**
+ * Inverted index from keys extracted of the entry strings to entry ids,
+ * built once for a loaded database and updated for each entry modified.
+ */
+abstract class EntryIndex<K> {
+
+    private val postings = HashMap<K, HashSet<NodeId<UUID>>>()
+    // Keys of each entry, to remove the entry of the postings after a modification
+    private val entryKeys = HashMap<NodeId<UUID>, Iterable<K>>()
+    // Entries whose values are resolved only at search time (field references)
+    private val alwaysCandidates = HashSet<NodeId<UUID>>()
+    // Position of the entries in the tree when the index is built, the entries added later are after
+    private val entryPositions = HashMap<NodeId<UUID>, Int>()
+    private var nextPosition = 0
+
+    var isBuilt = false
+        private set
+
+    /**
+     * Add in [keys] the index keys of the [entry],
+     * return false if the entry can't be indexed and must always be a candidate
+     */
+    protected abstract fun extractKeys(entry: Entry, keys: MutableSet<K>): Boolean
+
+    /**
+     * Copy the [keys] of an entry in a compact collection, kept as long as the entry is indexed
+     */
+    protected open fun compactKeys(keys: Set<K>): Iterable<K> {
+        return ArrayList(keys)
+    }
+
+    fun build(rootGroup: Group?) {
+        clear()
+        isBuilt = true
+        rootGroup?.doForEachChild(
+            object : NodeHandler<Entry>() {
+                override fun operate(node: Entry): Boolean {
+                    addEntry(node)
+                    return true
+                }
+            },
+            null
+        )
+    }
+
+    fun clear() {
+        postings.clear()
+        entryKeys.clear()
+        alwaysCandidates.clear()
+        entryPositions.clear()
+        nextPosition = 0
+        isBuilt = false
+    }
+
+    fun addEntry(entry: Entry) {
+        // Not built, will be indexed with the next build
+        if (!isBuilt)
+            return
+        val entryId = entry.nodeId
+        unindexEntry(entryId)
+        // An updated entry keeps its position
+        if (!entryPositions.containsKey(entryId))
+            entryPositions[entryId] = nextPosition++
+
+        val keys = HashSet<K>()
+        if (!extractKeys(entry, keys))
+            alwaysCandidates.add(entryId)
+        for (key in keys) {
+            postings.getOrPut(key) { HashSet() }.add(entryId)
+        }
+        entryKeys[entryId] = compactKeys(keys)
+    }
+
+    fun updateEntry(entry: Entry) {
+        addEntry(entry)
+    }
+
+    fun removeEntry(entryId: NodeId<UUID>) {
+        unindexEntry(entryId)
+        entryPositions.remove(entryId)
+    }
+
+    private fun unindexEntry(entryId: NodeId<UUID>) {
+        entryKeys.remove(entryId)?.forEach { key ->
+            postings[key]?.let { entryIds ->
+                entryIds.remove(entryId)
+                if (entryIds.isEmpty())
+                    postings.remove(key)
+            }
+        }
+        alwaysCandidates.remove(entryId)
+    }
+
+    /**
+     * Keys of all the indexed entries
+     */
+    protected val indexedKeys: Set<K>
+        get() = postings.keys
+
+    /**
+     * Return the ids of the entries indexed with all the [keys] or not indexable, in the order of the tree,
+     * or null if the index is not built or no key is provided
+     */
+    protected fun getCandidates(keys: Collection<K>): MutableSet<NodeId<UUID>>? {
+        if (!isBuilt || keys.isEmpty())
+            return null
+        var candidates: MutableSet<NodeId<UUID>>? = null
+        for (key in keys) {
+            val entryIds = postings[key] ?: emptySet<NodeId<UUID>>()
+            val currentCandidates = candidates
+            if (currentCandidates == null) {
+                candidates = HashSet(entryIds)
+            } else {
+                currentCandidates.retainAll(entryIds)
+                if (currentCandidates.isEmpty())
+                    break
+            }
+        }
+        val result = candidates ?: return null
+        result.addAll(alwaysCandidates)
+        return inTreeOrder(result)
+    }
+
+    /**
+     * Sort the [candidates] in the order of the tree,
+     * so that a search limited to a number of entries keeps the same entries as a walk of the tree
+     */
+    protected fun inTreeOrder(candidates: Collection<NodeId<UUID>>): MutableSet<NodeId<UUID>> {
+        return candidates.sortedBy { entryPositions[it] ?: Int.MAX_VALUE }
+            .toCollection(LinkedHashSet(candidates.size))
+    }
+
+    companion object {
+        private const val REFERENCE_PREFIX = "{REF:"
+
+        fun containsReference(value: String): Boolean {
+            return value.contains(REFERENCE_PREFIX, true)
+        }
+    }
+}
@@ -26,6 +26,7 @@ import com.kunzisoft.keepass.database.element.node.NodeHandler
 import com.kunzisoft.keepass.database.element.node.NodeId
 import com.kunzisoft.keepass.otp.OtpEntryFields.OTP_FIELD
 import com.kunzisoft.keepass.utils.UuidUtil
+import java.util.*
 
 class SearchHelper {
 
@@ -34,13 +35,15 @@ class SearchHelper {
     fun createVirtualGroupWithSearchResult(database: Database,
                                            searchParameters: SearchParameters,
                                            fromGroup: NodeId<*>? = null,
-                                           max: Int): Group? {
+                                           max: Int,
+                                           candidates: Set<NodeId<UUID>>? = null): Group? {
 
         val searchGroup = database.createGroup(virtual = true)
         searchGroup?.title = "\"" + searchParameters.searchQuery + "\""
 
         // Search all entries
         incrementEntry = 0
+        val queryPlan = searchParameters.compileQuery()
 
         val allowCustomSearchable = database.allowCustomSearchableGroup()
         val startGroup = if (searchParameters.searchInCurrentGroup && fromGroup != null) {
@@ -48,7 +51,12 @@ class SearchHelper {
         } else {
             database.rootGroup
         }
-        if (groupConditions(database, startGroup, searchParameters, allowCustomSearchable, max)) {
+        if (candidates != null) {
+            searchInCandidates(database, candidates, startGroup, searchParameters,
+                queryPlan, allowCustomSearchable, max) { entry ->
+                searchGroup?.addChildEntry(entry)
+            }
+        } else if (groupConditions(database, startGroup, searchParameters, allowCustomSearchable, max)) {
             startGroup?.doForEachChild(
                 object : NodeHandler<Entry>() {
                     override fun operate(node: Entry): Boolean {
@@ -56,7 +64,7 @@ class SearchHelper {
                             return false
                         if (database.entryIsTemplate(node) && !searchParameters.searchInTemplates)
                             return false
-                        if (entryContainsString(database, node, searchParameters)) {
+                        if (entryContainsString(database, node, searchParameters, queryPlan)) {
                             searchGroup?.addChildEntry(node)
                             incrementEntry++
                         }
@@ -82,6 +90,71 @@ class SearchHelper {
         return searchGroup
     }
 
+    /**
+     * Check only the [candidates] retrieved from the search index,
+     * the groups conditions are checked on the ancestors of each candidate
+     */
+    private fun searchInCandidates(database: Database,
+                                   candidates: Set<NodeId<UUID>>,
+                                   startGroup: Group?,
+                                   searchParameters: SearchParameters,
+                                   queryPlan: SearchQueryPlan,
+                                   allowCustomSearchable: Boolean,
+                                   max: Int,
+                                   entryFound: (Entry) -> Unit) {
+        if (startGroup == null)
+            return
+        // Group conditions already computed
+        val groupsAllowed = HashMap<NodeId<*>, Boolean>()
+        for (candidateId in candidates) {
+            if (incrementEntry >= max)
+                break
+            val entry = database.getEntryById(candidateId) ?: continue
+            if (database.entryIsTemplate(entry) && !searchParameters.searchInTemplates)
+                continue
+            if (!ancestorsConditions(database, entry, startGroup, searchParameters,
+                    allowCustomSearchable, max, groupsAllowed))
+                continue
+            if (entryContainsString(database, entry, searchParameters, queryPlan)) {
+                entryFound.invoke(entry)
+                incrementEntry++
+            }
+        }
+    }
+
+    private fun ancestorsConditions(database: Database,
+                                    entry: Entry,
+                                    startGroup: Group,
+                                    searchParameters: SearchParameters,
+                                    allowCustomSearchable: Boolean,
+                                    max: Int,
+                                    groupsAllowed: HashMap<NodeId<*>, Boolean>): Boolean {
+        val ancestors = ArrayList<NodeId<*>>()
+        var allowed = false
+        var group = entry.parent
+        while (group != null) {
+            val groupId = group.nodeId
+            val groupAllowed = groupsAllowed[groupId]
+            if (groupAllowed != null) {
+                allowed = groupAllowed
+                break
+            }
+            ancestors.add(groupId)
+            if (!groupConditions(database, group, searchParameters, allowCustomSearchable, max)) {
+                allowed = false
+                break
+            }
+            if (groupId == startGroup.nodeId) {
+                allowed = true
+                break
+            }
+            group = group.parent
+        }
+        // Not in the start group if the root is reached
+        ancestors.forEach { groupsAllowed[it] = allowed }
+        return allowed
+    }
+
     private fun groupConditions(database: Database,
                                 group: Group?,
                                 searchParameters: SearchParameters,
@@ -98,18 +171,19 @@ class SearchHelper {
         else if (!allowCustomSearchable)
             true
         else if (searchParameters.searchInSearchableGroup)
-            group.isSearchable()
+            database.groupIsSearchable(group)
         else
             true
     }
 
     private fun entryContainsString(database: Database,
                                     entry: Entry,
-                                    searchParameters: SearchParameters): Boolean {
+                                    searchParameters: SearchParameters,
+                                    queryPlan: SearchQueryPlan): Boolean {
         // To search in field references
         database.startManageEntry(entry)
         // Search all strings in the entry
-        val searchFound = searchInEntry(entry, searchParameters)
+        val searchFound = searchInEntry(entry, searchParameters, queryPlan)
         database.stopManageEntry(entry)
 
         return searchFound
@@ -122,10 +196,17 @@ class SearchHelper {
          */
         fun searchInEntry(entry: Entry,
                           searchParameters: SearchParameters): Boolean {
-            val searchQuery = searchParameters.searchQuery
+            return searchInEntry(entry, searchParameters, searchParameters.compileQuery())
+        }
 
+        /**
+         * Same as [searchInEntry] with the [queryPlan] already compiled from the search parameters
+         */
+        fun searchInEntry(entry: Entry,
+                          searchParameters: SearchParameters,
+                          queryPlan: SearchQueryPlan): Boolean {
             // Not found if the search string is empty
-            if (searchQuery.isEmpty())
+            if (queryPlan.isEmpty())
                 return false
 
             // Exclude entry expired
@@ -136,70 +217,52 @@ class SearchHelper {
 
             // Search all strings in the KDBX entry
             if (searchParameters.searchInTitles) {
-                if (checkSearchQuery(entry.title, searchParameters))
+                if (checkSearchQuery(entry.title, queryPlan))
                     return true
             }
             if (searchParameters.searchInUsernames) {
-                if (checkSearchQuery(entry.username, searchParameters))
+                if (checkSearchQuery(entry.username, queryPlan))
                     return true
             }
             if (searchParameters.searchInPasswords) {
-                if (checkSearchQuery(entry.password, searchParameters))
+                if (checkSearchQuery(entry.password, queryPlan))
                     return true
             }
             if (searchParameters.searchInUrls) {
-                if (checkSearchQuery(entry.url, searchParameters))
+                if (checkSearchQuery(entry.url, queryPlan))
                     return true
             }
             if (searchParameters.searchInNotes) {
-                if (checkSearchQuery(entry.notes, searchParameters))
+                if (checkSearchQuery(entry.notes, queryPlan))
                     return true
             }
             if (searchParameters.searchInUUIDs) {
                 val hexString = UuidUtil.toHexString(entry.nodeId.id) ?: ""
-                if (checkSearchQuery(hexString, searchParameters))
+                if (checkSearchQuery(hexString, queryPlan))
                     return true
             }
             if (searchParameters.searchInOther) {
                 entry.getExtraFields().forEach { field ->
                     if (field.name != OTP_FIELD
                             || (field.name == OTP_FIELD && searchParameters.searchInOTP)) {
-                        if (checkSearchQuery(field.protectedValue.toString(), searchParameters))
+                        if (checkSearchQuery(field.protectedValue.toString(), queryPlan))
                             return true
                     }
                 }
             }
             if (searchParameters.searchInTags) {
-                if (checkSearchQuery(entry.tags.toString(), searchParameters))
+                if (checkSearchQuery(entry.tags.toString(), queryPlan))
                     return true
             }
             return false
         }
 
-        private fun checkSearchQuery(stringToCheck: String, searchParameters: SearchParameters): Boolean {
+        private fun checkSearchQuery(stringToCheck: String, queryPlan: SearchQueryPlan): Boolean {
             /*
             // TODO Search settings
             var removeAccents = true <- Too much time, to study
             */
-            if (stringToCheck.isEmpty())
-                return false
-            return if (searchParameters.isRegex) {
-                val regex = if (searchParameters.caseSensitive) {
-                    searchParameters.searchQuery
-                        .toRegex(RegexOption.DOT_MATCHES_ALL)
-                } else {
-                    searchParameters.searchQuery
-                        .toRegex(setOf(RegexOption.DOT_MATCHES_ALL, RegexOption.IGNORE_CASE))
-                }
-                regex.matches(stringToCheck)
-            } else {
-                var searchFound = true
-                searchParameters.searchQuery.split(" ").forEach { word ->
-                    searchFound = searchFound
-                            && stringToCheck.contains(word, !searchParameters.caseSensitive)
-                }
-                searchFound
-            }
+            return queryPlan.matches(stringToCheck)
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *     
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.node.NodeId
+import com.kunzisoft.keepass.otp.OtpEntryFields.OTP_FIELD
+import com.kunzisoft.keepass.utils.UuidUtil
+import java.util.*
+
+/**
+ * Inverted index of the entry strings, from case folded trigram to entry ids,
+ * to retrieve the candidates of a search without checking each entry of the database.
+ * Candidates are a superset of the results and must still be checked with [SearchHelper.searchInEntry].
+ * Passwords, OTP fields and protected fields are not indexed,
+ * an entry with a protected field is always a candidate.
+ */
+class SearchIndex : EntryIndex<Long>() {
+
+    override fun extractKeys(entry: Entry, keys: MutableSet<Long>): Boolean {
+        var referenceFound = false
+        var protectedFound = false
+        val indexField: (String) -> Unit = { value ->
+            if (containsReference(value))
+                referenceFound = true
+            addTrigrams(value, keys)
+        }
+        indexField(entry.title)
+        indexField(entry.username)
+        indexField(entry.url)
+        indexField(entry.notes)
+        indexField(UuidUtil.toHexString(entry.nodeId.id) ?: "")
+        entry.getExtraFields().forEach { field ->
+            if (field.name != OTP_FIELD) {
+                if (field.protectedValue.isProtected)
+                    protectedFound = true
+                else
+                    indexField(field.protectedValue.toString())
+            }
+        }
+        indexField(entry.tags.toString())
+        return !referenceFound && !protectedFound
+    }
+
+    override fun compactKeys(keys: Set<Long>): Iterable<Long> {
+        return keys.toLongArray().asIterable()
+    }
+
+    /**
+     * Return the ids of the entries which can match the [searchParameters],
+     * or null if the query can't be resolved by the index and all entries must be checked
+     */
+    fun getCandidates(searchParameters: SearchParameters): Set<NodeId<UUID>>? {
+        if (searchParameters.isRegex
+            || searchParameters.searchInPasswords
+            || searchParameters.searchInOTP)
+            return null
+
+        val wordTrigrams = HashSet<Long>()
+        for (word in searchParameters.searchQuery.split(" ")) {
+            addTrigrams(word, wordTrigrams)
+        }
+        // Null if no word long enough to be filtered
+        return getCandidates(wordTrigrams)
+    }
+
+    companion object {
+
+        private fun foldCase(char: Char): Long {
+            return SearchQueryPlan.foldCase(char).code.toLong()
+        }
+
+        private fun addTrigrams(value: String, trigrams: MutableSet<Long>) {
+            if (value.length < 3)
+                return
+            var c0 = foldCase(value[0])
+            var c1 = foldCase(value[1])
+            for (i in 2 until value.length) {
+                val c2 = foldCase(value[i])
+                trigrams.add((c0 shl 32) or (c1 shl 16) or c2)
+                c0 = c1
+                c1 = c2
+            }
+        }
+    }
+}
@@ -46,6 +46,26 @@ class SearchParameters() : Parcelable{
     var searchInRecycleBin = false
     var searchInTemplates = false
 
+    // Not written in the parcel, rebuilt at the first compilation after the parcel is read
+    private var mQueryPlan: SearchQueryPlan? = null
+
+    /**
+     * Compile the query only once for all the strings checked,
+     * the plan is rebuilt only if the query parameters change
+     */
+    fun compileQuery(): SearchQueryPlan {
+        val queryPlan = mQueryPlan
+        if (queryPlan != null
+            && queryPlan.searchQuery == searchQuery
+            && queryPlan.caseSensitive == caseSensitive
+            && queryPlan.isRegex == isRegex) {
+            return queryPlan
+        }
+        return SearchQueryPlan(searchQuery, caseSensitive, isRegex).also {
+            mQueryPlan = it
+        }
+    }
+
     constructor(parcel: Parcel) : this() {
         searchQuery = parcel.readString() ?: searchQuery
         caseSensitive = parcel.readByte() != 0.toByte()
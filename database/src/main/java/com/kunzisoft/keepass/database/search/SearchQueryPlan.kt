@@ -0,0 +1,127 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *     
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+/**
+ * Immutable plan of a search query, compiled once by [SearchParameters.compileQuery]
+ * and evaluated on each string of each entry.
+ */
+class SearchQueryPlan(val searchQuery: String,
+                      val caseSensitive: Boolean,
+                      val isRegex: Boolean) {
+
+    private val regex: Regex? = if (isRegex) {
+        if (caseSensitive) {
+            searchQuery.toRegex(RegexOption.DOT_MATCHES_ALL)
+        } else {
+            searchQuery.toRegex(setOf(RegexOption.DOT_MATCHES_ALL, RegexOption.IGNORE_CASE))
+        }
+    } else {
+        null
+    }
+
+    // Words already split and case folded
+    private val matchers: List<WordMatcher> = if (isRegex) {
+        emptyList()
+    } else {
+        searchQuery.split(" ").map { word ->
+            WordMatcher(if (caseSensitive) word else foldCase(word))
+        }
+    }
+
+    fun isEmpty(): Boolean {
+        return searchQuery.isEmpty()
+    }
+
+    /**
+     * Return true if the [stringToCheck] matches the query,
+     * with a regex or by containing all the words of the query
+     */
+    fun matches(stringToCheck: String): Boolean {
+        if (stringToCheck.isEmpty())
+            return false
+        regex?.let {
+            return it.matches(stringToCheck)
+        }
+        // Fold the string only once for all words
+        val text = if (caseSensitive) stringToCheck else foldCase(stringToCheck)
+        for (matcher in matchers) {
+            if (!matcher.isIn(text))
+                return false
+        }
+        return true
+    }
+
+    /**
+     * Find a word in a text, with a Boyer-Moore-Horspool skip table for the long words
+     */
+    private class WordMatcher(private val word: String) {
+
+        private val skipTable: IntArray? = if (word.length >= BMH_MIN_LENGTH) {
+            val last = word.length - 1
+            IntArray(SKIP_TABLE_SIZE) { word.length }.also { table ->
+                // Chars sharing a slot keep the smallest shift
+                for (i in 0 until last) {
+                    table[word[i].code and SKIP_TABLE_MASK] = last - i
+                }
+            }
+        } else {
+            null
+        }
+
+        fun isIn(text: String): Boolean {
+            val table = skipTable ?: return text.contains(word)
+            val wordLength = word.length
+            val last = wordLength - 1
+            var offset = 0
+            while (offset <= text.length - wordLength) {
+                var i = last
+                while (text[offset + i] == word[i]) {
+                    if (i == 0)
+                        return true
+                    i--
+                }
+                offset += table[text[offset + last].code and SKIP_TABLE_MASK]
+            }
+            return false
+        }
+    }
+
+    companion object {
+        private const val BMH_MIN_LENGTH = 4
+        private const val SKIP_TABLE_SIZE = 256
+        private const val SKIP_TABLE_MASK = SKIP_TABLE_SIZE - 1
+
+        /**
+         * Fold the char like a case insensitive comparison of String.contains
+         */
+        fun foldCase(char: Char): Char {
+            return char.uppercaseChar().lowercaseChar()
+        }
+
+        fun foldCase(value: String): String {
+            val chars = CharArray(value.length)
+            for (i in value.indices) {
+                chars[i] = foldCase(value[i])
+            }
+            return String(chars)
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *     
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.database.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Tags
+import com.kunzisoft.keepass.database.element.node.NodeId
+import java.util.*
+
+class TagIndex : EntryIndex<String>() {
+
+    override fun extractKeys(entry: Entry, keys: MutableSet<String>): Boolean {
+        entry.tags.toList().forEach { tag ->
+            keys.add(SearchQueryPlan.foldCase(tag))
+        }
+        return true
+    }
+
+    /**
+     * Return the ids of the entries which can match the [searchParameters] by their tags only,
+     * or null if other fields are searched and all entries must be checked,
+     * each query scans the distinct tags but not the entries
+     */
+    fun getCandidates(searchParameters: SearchParameters): Set<NodeId<UUID>>? {
+        if (!isBuilt
+            || !searchParameters.searchInTags
+            || searchParameters.isRegex
+            || searchParameters.searchInTitles
+            || searchParameters.searchInUsernames
+            || searchParameters.searchInPasswords
+            || searchParameters.searchInUrls
+            || searchParameters.searchInNotes
+            || searchParameters.searchInUUIDs
+            || searchParameters.searchInOther)
+            return null
+        // Each word of a query must be in a single tag if it doesn't contain a delimiter
+        val word = searchParameters.searchQuery.split(" ").firstOrNull { it.isNotEmpty() }
+        if (word == null || Tags.DELIMITERS.any { word.contains(it) })
+            return null
+        val foldedWord = SearchQueryPlan.foldCase(word)
+        val candidates = HashSet<NodeId<UUID>>()
+        indexedKeys.forEach { tag ->
+            if (tag.contains(foldedWord)) {
+                getCandidates(listOf(tag))?.let { candidates.addAll(it) }
+            }
+        }
+        return inTreeOrder(candidates)
+    }
+}
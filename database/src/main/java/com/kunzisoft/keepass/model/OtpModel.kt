@@ -39,6 +39,18 @@ class OtpModel() : Parcelable {
     var digits: Int = TokenCalculator.OTP_DEFAULT_DIGITS
     var algorithm: TokenCalculator.HashAlgorithm = OTP_DEFAULT_ALGORITHM
 
+    constructor(otpModel: OtpModel) : this() {
+        type = otpModel.type
+        tokenType = otpModel.tokenType
+        name = otpModel.name
+        issuer = otpModel.issuer
+        secret = otpModel.secret?.copyOf()
+        counter = otpModel.counter
+        period = otpModel.period
+        digits = otpModel.digits
+        algorithm = otpModel.algorithm
+    }
+
     constructor(parcel: Parcel) : this() {
         val typeRead = parcel.readInt()
         type = OtpType.values()[typeRead]
@@ -165,17 +165,34 @@ data class OtpElement(var otpModel: OtpModel = OtpModel()) {
             throw IllegalArgumentException()
     }
 
+    // Token of the last time step (or counter), computed only once by step
+    private var mTokenModel: OtpModel? = null
+    private var mTokenStep = 0L
+    private var mToken = ""
+    private var mTokenString = ""
+
     val token: String
         get() {
             if (secret == null)
                 return ""
-            return when (type) {
+            val step = when (type) {
+                OtpType.HOTP -> counter
+                OtpType.TOTP -> System.currentTimeMillis() / 1000 / period
+            }
+            if (step == mTokenStep && otpModel == mTokenModel)
+                return mToken
+            val token = when (type) {
                 OtpType.HOTP -> TokenCalculator.HOTP(secret, counter, digits, algorithm)
                 OtpType.TOTP -> when (tokenType) {
                     OtpTokenType.STEAM -> TokenCalculator.TOTP_Steam(secret, period, digits, algorithm)
                     else -> TokenCalculator.TOTP_RFC6238(secret, period, digits, algorithm)
                 }
             }
+            mTokenModel = OtpModel(otpModel)
+            mTokenStep = step
+            mToken = token
+            mTokenString = token.replace("...".toRegex(), "$0 ")
+            return token
         }
 
     /**
@@ -183,7 +200,8 @@ data class OtpElement(var otpModel: OtpModel = OtpModel()) {
      */
     val tokenString: String
         get() {
-            return token.replace("...".toRegex(), "$0 ")
+            val token = token
+            return if (token === mToken) mTokenString else token
         }
 
     val secondsRemaining: Int
@@ -24,6 +24,7 @@ import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
+import java.util.EnumMap;
 import java.util.Locale;
 
 import javax.crypto.Mac;
@@ -55,11 +56,25 @@ public class TokenCalculator {
         }
     }
 
+    // Mac instances reused by thread, Mac.getInstance looks up the providers at each call
+    private static final ThreadLocal<EnumMap<HashAlgorithm, Mac>> MACS =
+            new ThreadLocal<EnumMap<HashAlgorithm, Mac>>() {
+                @Override
+                protected EnumMap<HashAlgorithm, Mac> initialValue() {
+                    return new EnumMap<>(HashAlgorithm.class);
+                }
+            };
+
     private static byte[] generateHash(HashAlgorithm algorithm, byte[] key, byte[] data)
             throws NoSuchAlgorithmException, InvalidKeyException {
         String algo = "Hmac" + algorithm.toString();
 
-        Mac mac = Mac.getInstance(algo);
+        EnumMap<HashAlgorithm, Mac> macs = MACS.get();
+        Mac mac = macs.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algo);
+            macs.put(algorithm, mac);
+        }
         mac.init(new SecretKeySpec(key, algo));
 
         return mac.doFinal(data);
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import javax.crypto.Cipher
+
+/**
+ * Decrypt [sourceStream] with [cipher] by chunks of [chunkSize] bytes,
+ * unlike CipherInputStream which updates the cipher with small blocks,
+ * so that the native cipher can process large buffers in a single call.
+ * The cipher works on direct buffers, crypted by the native cipher without copy through the Java heap.
+ */
+class BlockCipherInputStream(private val sourceStream: InputStream,
+                             private val cipher: Cipher,
+                             private val chunkSize: Int = DEFAULT_CHUNK_SIZE) : InputStream() {
+
+    private val readBuffer = ByteArray(chunkSize)
+    private val inputBuffer = ByteBuffer.allocateDirect(chunkSize)
+    private var outputBuffer = ByteBuffer.allocateDirect(cipher.getOutputSize(chunkSize))
+    private var endOfStream = false
+
+    init {
+        // Nothing to read before the first chunk
+        outputBuffer.limit(0)
+    }
+
+    /**
+     * Decrypt the next chunk if the current one is consumed,
+     * return false at the end of the stream
+     */
+    @Throws(IOException::class)
+    private fun nextChunk(): Boolean {
+        while (!outputBuffer.hasRemaining()) {
+            if (endOfStream)
+                return false
+            val read = readChunk()
+            inputBuffer.clear()
+            inputBuffer.put(readBuffer, 0, read)
+            inputBuffer.flip()
+            try {
+                if (read == 0) {
+                    endOfStream = true
+                    ensureOutputSize(cipher.getOutputSize(0))
+                    cipher.doFinal(inputBuffer, outputBuffer)
+                } else {
+                    ensureOutputSize(cipher.getOutputSize(read))
+                    cipher.update(inputBuffer, outputBuffer)
+                }
+            } catch (e: GeneralSecurityException) {
+                outputBuffer.clear()
+                outputBuffer.limit(0)
+                throw IOException(e)
+            }
+            outputBuffer.flip()
+        }
+        return true
+    }
+
+    /**
+     * Fill the read buffer as much as possible, return 0 at the end of the source
+     */
+    @Throws(IOException::class)
+    private fun readChunk(): Int {
+        var length = 0
+        while (length < chunkSize) {
+            val read = sourceStream.read(readBuffer, length, chunkSize - length)
+            if (read == -1)
+                break
+            length += read
+        }
+        return length
+    }
+
+    /**
+     * Clear the output buffer to write a new chunk of at least [size] bytes
+     */
+    private fun ensureOutputSize(size: Int) {
+        if (outputBuffer.capacity() < size)
+            outputBuffer = ByteBuffer.allocateDirect(size)
+        outputBuffer.clear()
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (!nextChunk()) return -1
+        return outputBuffer.get().toInt() and 0xFF
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray, byteOffset: Int, byteCount: Int): Int {
+        if (byteCount == 0) return 0
+        if (!nextChunk()) return -1
+        val copy = outputBuffer.remaining().coerceAtMost(byteCount)
+        outputBuffer.get(outBuffer, byteOffset, copy)
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray): Int {
+        return read(outBuffer, 0, outBuffer.size)
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return outputBuffer.remaining()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        wipe(inputBuffer)
+        wipe(outputBuffer)
+        outputBuffer.limit(0)
+        readBuffer.fill(0)
+        sourceStream.close()
+    }
+
+    private fun wipe(buffer: ByteBuffer) {
+        buffer.clear()
+        while (buffer.hasRemaining()) {
+            buffer.put(0)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 256 * 1024
+    }
+}
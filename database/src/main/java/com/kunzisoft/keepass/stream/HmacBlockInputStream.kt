@@ -26,16 +26,45 @@ import com.kunzisoft.keepass.utils.uLongTo8Bytes
 import com.kunzisoft.keepass.database.crypto.HmacBlock
 import java.io.IOException
 import java.io.InputStream
+import java.security.MessageDigest
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 import javax.crypto.Mac
 
-class HmacBlockInputStream(private val baseStream: InputStream, private val verify: Boolean, private val key: ByteArray) : InputStream() {
+/**
+ * Read the HMAC blocks of a KDBX 4 database,
+ * if [readAheadBlocks] is greater than 0, the next blocks are verified concurrently on a small pool of threads,
+ * each block is still only returned after its own verification, in order.
+ */
+class HmacBlockInputStream(private val baseStream: InputStream,
+                           private val verify: Boolean,
+                           private val key: ByteArray,
+                           private val readAheadBlocks: Int = 0) : InputStream() {
 
     private var buffer: ByteArray = ByteArray(0)
     private var bufferPos = 0
     private var blockIndex = UnsignedLong(0L)
     private var endOfStream = false
 
+    private val blockVerifier: BlockVerifier by lazy { BlockVerifier(key) }
+
+    // Read ahead mode, the executor and the pending blocks are guarded by the lock
+    private val lock = Any()
+    private var closed = false
+    private var verifyExecutor: ExecutorService? = null
+    private val threadBlockVerifier = object : ThreadLocal<BlockVerifier>() {
+        override fun initialValue(): BlockVerifier {
+            return BlockVerifier(key)
+        }
+    }
+    private val pendingBlocks: Queue<Future<HmacBlockData>> = LinkedList()
+    private var endOfBaseStream = false
+
     @Throws(IOException::class)
     override fun read(): Int {
         if (endOfStream) return -1
@@ -86,6 +115,30 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
     private fun readSafeBlock(): Boolean {
         if (endOfStream) return false
 
+        val block = if (verify && readAheadBlocks > 0) {
+            readVerifiedBlockAhead()
+        } else {
+            readBlock().also {
+                if (verify && !blockVerifier.verify(it)) {
+                    throw IOException("Invalid Hmac")
+                }
+            }
+        }
+
+        bufferPos = 0
+        buffer = block.data
+
+        if (block.isLast) {
+            endOfStream = true
+            shutdownExecutor()
+            return false
+        }
+
+        return true
+    }
+
+    @Throws(IOException::class)
+    private fun readBlock(): HmacBlockData {
         val storedHmac = baseStream.readBytesLength(32)
         if (storedHmac.size != 32) {
             throw IOException("File corrupted")
@@ -96,39 +149,98 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
             throw IOException("File corrupted")
         }
         val blockSize = bytes4ToUInt(pbBlockSize)
-        bufferPos = 0
-
-        buffer = baseStream.readBytesLength(blockSize.toKotlinInt())
 
-        if (verify) {
-            val pbBlockIndex = uLongTo8Bytes(blockIndex)
+        val data = baseStream.readBytesLength(blockSize.toKotlinInt())
+        val pbBlockIndex = uLongTo8Bytes(blockIndex)
+        blockIndex.plusOne()
 
-            val blockKey = HmacBlock.getHmacKey64(key, pbBlockIndex)
-            val hmac: Mac = HmacBlock.getHmacSha256(blockKey)
-            hmac.update(pbBlockIndex)
-            hmac.update(pbBlockSize)
+        return HmacBlockData(storedHmac, pbBlockIndex, pbBlockSize, data,
+                blockSize.toKotlinLong() == 0L)
+    }
 
-            if (buffer.isNotEmpty()) {
-                hmac.update(buffer)
+    /**
+     * Fill the window of blocks being verified and wait for the verification of the next one
+     */
+    @Throws(IOException::class)
+    private fun readVerifiedBlockAhead(): HmacBlockData {
+        while (!endOfBaseStream && pendingBlocksCount() < readAheadBlocks) {
+            val block = try {
+                readBlock()
+            } catch (e: IOException) {
+                // Thrown only when the previous blocks are consumed
+                endOfBaseStream = true
+                addPendingBlock { FutureTask(Callable<HmacBlockData> { throw e }).apply { run() } }
+                break
             }
-
-            val cmpHmac: ByteArray = hmac.doFinal()
-            Arrays.fill(blockKey, 0.toByte())
-
-            if (!cmpHmac.contentEquals(storedHmac)) {
-                throw IOException("Invalid Hmac")
+            if (block.isLast)
+                endOfBaseStream = true
+            addPendingBlock { executor ->
+                executor.submit(Callable {
+                    if (!threadBlockVerifier.get()!!.verify(block)) {
+                        throw IOException("Invalid Hmac")
+                    }
+                    block
+                })
             }
+        }
 
+        val nextBlock = synchronized(lock) {
+            if (closed)
+                throw IOException("Stream closed")
+            pendingBlocks.poll()
+        } ?: throw IOException("File corrupted")
+        try {
+            return nextBlock.get()
+        } catch (e: ExecutionException) {
+            endOfStream = true
+            shutdownExecutor()
+            val cause = e.cause
+            if (cause is IOException)
+                throw cause
+            throw IOException(cause)
+        } catch (e: InterruptedException) {
+            endOfStream = true
+            shutdownExecutor()
+            throw IOException(e)
         }
+    }
 
-        blockIndex.plusOne()
+    @Throws(IOException::class)
+    private fun addPendingBlock(pendingBlock: (executor: ExecutorService) -> Future<HmacBlockData>) {
+        synchronized(lock) {
+            if (closed)
+                throw IOException("Stream closed")
+            pendingBlocks.add(pendingBlock(getVerifyExecutor()))
+        }
+    }
 
-        if (blockSize.toKotlinLong() == 0L) {
-            endOfStream = true
-            return false
+    private fun pendingBlocksCount(): Int {
+        synchronized(lock) {
+            return pendingBlocks.size
         }
+    }
 
-        return true
+    /**
+     * Must be called with the lock, the executor is never created again after [close]
+     */
+    private fun getVerifyExecutor(): ExecutorService {
+        return verifyExecutor ?: Executors.newFixedThreadPool(
+                readAheadBlocks.coerceAtMost(Runtime.getRuntime().availableProcessors())
+                        .coerceAtLeast(1)
+        ) { runnable ->
+            Thread(runnable, "HMAC block verification").apply { isDaemon = true }
+        }.also { verifyExecutor = it }
+    }
+
+    private fun shutdownExecutor() {
+        synchronized(lock) {
+            for (pendingBlock in pendingBlocks) {
+                pendingBlock.cancel(true)
+            }
+            pendingBlocks.clear()
+            verifyExecutor?.shutdownNow()
+            verifyExecutor = null
+        }
     }
 
     override fun markSupported(): Boolean {
@@ -137,6 +249,10 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
 
     @Throws(IOException::class)
     override fun close() {
+        synchronized(lock) {
+            closed = true
+            shutdownExecutor()
+        }
         baseStream.close()
     }
 
@@ -149,4 +265,39 @@ class HmacBlockInputStream(private val baseStream: InputStream, private val veri
     override fun available(): Int {
         return buffer.size - bufferPos
     }
+
+    private class HmacBlockData(val storedHmac: ByteArray,
+                                val blockIndex: ByteArray,
+                                val blockSize: ByteArray,
+                                val data: ByteArray,
+                                val isLast: Boolean)
+
+    /**
+     * Verify blocks by reusing the same hash instances, must be used by only one thread
+     */
+    private class BlockVerifier(private val key: ByteArray) {
+        private val sha512: MessageDigest = HmacBlock.getSha512()
+        private val hmac: Mac = HmacBlock.getHmacSha256()
+
+        @Throws(IOException::class)
+        fun verify(block: HmacBlockData): Boolean {
+            val blockKey = HmacBlock.getHmacKey64(sha512, key, block.blockIndex)
+            HmacBlock.initHmacSha256(hmac, blockKey)
+            hmac.update(block.blockIndex)
+            hmac.update(block.blockSize)
+
+            if (block.data.isNotEmpty()) {
+                hmac.update(block.data)
+            }
+
+            val cmpHmac: ByteArray = hmac.doFinal()
+            Arrays.fill(blockKey, 0.toByte())
+
+            return cmpHmac.contentEquals(block.storedHmac)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_READ_AHEAD_BLOCKS = 4
+    }
 }
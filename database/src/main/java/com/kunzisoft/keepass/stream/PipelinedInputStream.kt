@@ -0,0 +1,201 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Stage of a reading pipeline, [sourceStream] is consumed on a dedicated thread
+ * and the chunks read are handed to the reader through a bounded queue,
+ * so that the work of the source and the work of the reader are done in parallel.
+ * Errors of the source are thrown to the reader in order, after the chunks already read.
+ * The source is only used by the worker thread, and closed once the worker is stopped.
+ */
+class PipelinedInputStream(private val sourceStream: InputStream,
+                           stageName: String,
+                           private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+                           queueCapacity: Int = DEFAULT_QUEUE_CAPACITY) : InputStream() {
+
+    private val queue = ArrayBlockingQueue<Chunk>(queueCapacity)
+    // Buffers of the chunks consumed by the reader, reused by the worker
+    private val freeBuffers = ArrayBlockingQueue<ByteArray>(queueCapacity + 2)
+    private var currentChunk: Chunk.Data? = null
+    private var currentPos = 0
+    private var endOfStream = false
+    @Volatile
+    private var closed = false
+    private val sourceClosed = AtomicBoolean(false)
+
+    private val worker = Thread({ pump() }, stageName).apply {
+        isDaemon = true
+        start()
+    }
+
+    private fun pump() {
+        try {
+            while (!closed) {
+                val buffer = freeBuffers.poll() ?: ByteArray(chunkSize)
+                val read = sourceStream.read(buffer, 0, chunkSize)
+                if (read == -1)
+                    break
+                if (read > 0)
+                    queue.put(Chunk.Data(buffer, read))
+                else
+                    freeBuffers.offer(buffer)
+            }
+            queue.put(Chunk.End)
+        } catch (e: InterruptedException) {
+            // Pipeline closed by the reader
+        } catch (e: Throwable) {
+            try {
+                queue.put(Chunk.Failure(e))
+            } catch (interrupted: InterruptedException) {
+                // Pipeline closed by the reader
+            }
+        } finally {
+            // The reader didn't wait for the end of a read still in progress
+            if (closed) {
+                try {
+                    closeSource()
+                } catch (e: IOException) {
+                    // Pipeline already closed by the reader
+                }
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun closeSource() {
+        if (sourceClosed.compareAndSet(false, true))
+            sourceStream.close()
+    }
+
+    /**
+     * Retrieve the next chunk if the current one is consumed,
+     * return false at the end of the stream
+     */
+    @Throws(IOException::class)
+    private fun nextChunk(): Boolean {
+        while (currentChunk == null || currentPos == currentChunk!!.length) {
+            if (endOfStream)
+                return false
+            currentChunk?.let {
+                freeBuffers.offer(it.buffer)
+                currentChunk = null
+            }
+            val chunk = try {
+                queue.take()
+            } catch (e: InterruptedException) {
+                throw InterruptedIOException("Pipeline interrupted")
+            }
+            when (chunk) {
+                is Chunk.Data -> {
+                    currentChunk = chunk
+                    currentPos = 0
+                }
+                is Chunk.End -> {
+                    endOfStream = true
+                    currentChunk = null
+                    return false
+                }
+                is Chunk.Failure -> {
+                    endOfStream = true
+                    currentChunk = null
+                    when (val error = chunk.error) {
+                        is IOException -> throw error
+                        is Error -> throw error
+                        else -> throw IOException(error)
+                    }
+                }
+            }
+        }
+        return true
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        if (!nextChunk()) return -1
+        val output = currentChunk!!.buffer[currentPos].toInt() and 0xFF
+        currentPos++
+        return output
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray, byteOffset: Int, byteCount: Int): Int {
+        if (byteCount == 0) return 0
+        if (!nextChunk()) return -1
+        val chunk = currentChunk!!
+        val copy = (chunk.length - currentPos).coerceAtMost(byteCount)
+        System.arraycopy(chunk.buffer, currentPos, outBuffer, byteOffset, copy)
+        currentPos += copy
+        return copy
+    }
+
+    @Throws(IOException::class)
+    override fun read(outBuffer: ByteArray): Int {
+        return read(outBuffer, 0, outBuffer.size)
+    }
+
+    override fun markSupported(): Boolean {
+        return false
+    }
+
+    @Throws(IOException::class)
+    override fun available(): Int {
+        return currentChunk?.let { it.length - currentPos } ?: 0
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed) return
+        closed = true
+        // Stop the worker before closing the source, which is not thread safe
+        worker.interrupt()
+        queue.clear()
+        try {
+            worker.join(CLOSE_TIMEOUT)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        queue.clear()
+        freeBuffers.clear()
+        currentChunk = null
+        // Else the worker closes the source at the end of its current read
+        if (!worker.isAlive)
+            closeSource()
+    }
+
+    private sealed class Chunk {
+        class Data(val buffer: ByteArray, val length: Int) : Chunk()
+        object End : Chunk()
+        class Failure(val error: Throwable) : Chunk()
+    }
+
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 64 * 1024
+        const val DEFAULT_QUEUE_CAPACITY = 16
+        // Maximum time to wait for the current read of the worker when the pipeline is closed
+        private const val CLOSE_TIMEOUT = 2000L
+    }
+}
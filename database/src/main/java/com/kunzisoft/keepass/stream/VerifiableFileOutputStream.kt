@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.stream
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import kotlin.math.min
+
+/**
+ * Write in [file] and keep the first and the last [verificationSize] bytes written,
+ * so that the file can be verified after a save by re-reading only its header and its trailer.
+ * The file is synchronized with the storage device when the stream is closed.
+ */
+class VerifiableFileOutputStream(private val file: File,
+                                 private val verificationSize: Int = DEFAULT_VERIFICATION_SIZE)
+    : OutputStream() {
+
+    private val fileOutputStream = FileOutputStream(file)
+    private val head = ByteArray(verificationSize)
+    // Circular buffer of the last bytes written
+    private val tail = ByteArray(verificationSize)
+    private var tailPosition = 0
+    private var length = 0L
+    private var closed = false
+
+    @Throws(IOException::class)
+    override fun write(oneByte: Int) {
+        fileOutputStream.write(oneByte)
+        if (length < verificationSize)
+            head[length.toInt()] = oneByte.toByte()
+        tail[tailPosition] = oneByte.toByte()
+        tailPosition = (tailPosition + 1) % verificationSize
+        length++
+    }
+
+    @Throws(IOException::class)
+    override fun write(buffer: ByteArray, offset: Int, count: Int) {
+        fileOutputStream.write(buffer, offset, count)
+        if (length < verificationSize) {
+            System.arraycopy(buffer, offset, head, length.toInt(),
+                min(count.toLong(), verificationSize - length).toInt())
+        }
+        // Only the last bytes of the buffer can stay in the tail
+        var tailOffset = offset + count - min(count, verificationSize)
+        var tailCount = min(count, verificationSize)
+        while (tailCount > 0) {
+            val copy = min(tailCount, verificationSize - tailPosition)
+            System.arraycopy(buffer, tailOffset, tail, tailPosition, copy)
+            tailPosition = (tailPosition + copy) % verificationSize
+            tailOffset += copy
+            tailCount -= copy
+        }
+        length += count
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        fileOutputStream.flush()
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        if (closed)
+            return
+        closed = true
+        fileOutputStream.use {
+            it.flush()
+            it.fd.sync()
+        }
+    }
+
+    /**
+     * Check that the file written has the expected length, header and trailer,
+     * throw an IOException if not
+     */
+    @Throws(IOException::class)
+    fun verify() {
+        RandomAccessFile(file, "r").use { randomAccessFile ->
+            if (randomAccessFile.length() != length) {
+                throw IOException("Length of $file is ${randomAccessFile.length()} instead of $length")
+            }
+            val headSize = min(length, verificationSize.toLong()).toInt()
+            val fileBytes = ByteArray(headSize)
+            randomAccessFile.readFully(fileBytes)
+            for (i in 0 until headSize) {
+                if (fileBytes[i] != head[i])
+                    throw IOException("Header of $file differs from the data written")
+            }
+            randomAccessFile.seek(length - headSize)
+            randomAccessFile.readFully(fileBytes)
+            // Oldest byte of the tail is at the current position if the buffer was filled
+            val tailStart = (tailPosition - headSize + verificationSize) % verificationSize
+            for (i in 0 until headSize) {
+                if (fileBytes[i] != tail[(tailStart + i) % verificationSize])
+                    throw IOException("Trailer of $file differs from the data written")
+            }
+        }
+    }
+
+    companion object {
+        // Covers the header with its HMAC and the last block of a KDBX file
+        const val DEFAULT_VERIFICATION_SIZE = 4096
+    }
+}
@@ -207,6 +207,43 @@ fun bytes16ToUuid(buf: ByteArray): UUID {
     return UUID(msb, lsb)
 }
 
+/**
+ * Decode the standard base 64 characters of [chars] from [start] to [start] + [length] in [output],
+ * without intermediate String or array. White spaces are ignored and the decoding stops at the padding.
+ * Return the number of bytes decoded, which can be greater than the size of [output]
+ * (the extra bytes are not written), or -1 if a character is not valid.
+ */
+fun base64CharsToBytes(chars: CharArray, start: Int, length: Int, output: ByteArray): Int {
+    var bits = 0
+    var bitCount = 0
+    var decoded = 0
+    for (i in start until start + length) {
+        val char = chars[i]
+        if (char == '=')
+            break
+        if (char == ' ' || char == '\n' || char == '\r' || char == '\t')
+            continue
+        val value = if (char.code < BASE64_DECODING_TABLE.size) BASE64_DECODING_TABLE[char.code] else -1
+        if (value < 0)
+            return -1
+        bits = bits shl 6 or value
+        bitCount += 6
+        if (bitCount >= 8) {
+            bitCount -= 8
+            if (decoded < output.size)
+                output[decoded] = (bits shr bitCount).toByte()
+            decoded++
+        }
+    }
+    return decoded
+}
+
+private val BASE64_DECODING_TABLE = IntArray(128) { -1 }.apply {
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".forEachIndexed { index, char ->
+        this[char.code] = index
+    }
+}
+
 /**
  * Unpack date from 5 byte format. The five bytes at 'offset' are unpacked
  * to a java.util.Date instance.
@@ -82,6 +82,15 @@ fun ContentResolver.getUriOutputStream(fileUri: Uri?): OutputStream? {
     }
 }
 
+/**
+ * Retrieve the local file of the URI, or null if it's not in the file scheme
+ */
+fun Uri.getLocalFile(): File? {
+    if (!this.withFileScheme())
+        return null
+    return this.path?.let { File(it) }
+}
+
 fun Uri.withFileScheme(): Boolean {
     val scheme = this.scheme
     if (scheme.isNullOrEmpty() || scheme.lowercase(Locale.ENGLISH) == "file") {
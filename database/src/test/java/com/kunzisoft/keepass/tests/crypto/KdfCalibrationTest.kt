@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.crypto
+
+import com.kunzisoft.keepass.database.crypto.kdf.AesKdf
+import junit.framework.TestCase
+
+class KdfCalibrationTest : TestCase() {
+
+    private val aesKdf = AesKdf()
+
+    fun testRoundsInBounds() {
+        val parameters = aesKdf.calibrate(aesKdf.defaultParameters, SHORT_DURATION)
+        val rounds = aesKdf.getKeyRounds(parameters)
+        assertTrue(rounds >= aesKdf.minKeyRounds)
+        assertTrue(rounds <= aesKdf.maxKeyRounds)
+    }
+
+    fun testRoundsScaleWithDuration() {
+        val shortRounds = aesKdf.getKeyRounds(
+            aesKdf.calibrate(aesKdf.defaultParameters, SHORT_DURATION))
+        val longRounds = aesKdf.getKeyRounds(
+            aesKdf.calibrate(aesKdf.defaultParameters, LONG_DURATION))
+        // Eight times the duration, with a margin for the timing of the probes
+        assertTrue("$longRounds rounds not scaled from $shortRounds rounds",
+            longRounds > shortRounds * 2)
+    }
+
+    fun testSourceParametersUnchanged() {
+        val sourceParameters = aesKdf.defaultParameters
+        val parameters = aesKdf.calibrate(sourceParameters, SHORT_DURATION)
+        assertEquals(aesKdf.defaultKeyRounds, aesKdf.getKeyRounds(sourceParameters))
+        assertNotNull(parameters.getByteArray(AesKdf.PARAM_SEED))
+        assertNull(sourceParameters.getByteArray(AesKdf.PARAM_SEED))
+    }
+
+    companion object {
+        private const val SHORT_DURATION = 50L
+        private const val LONG_DURATION = 400L
+    }
+}
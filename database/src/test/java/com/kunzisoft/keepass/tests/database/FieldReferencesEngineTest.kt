@@ -0,0 +1,97 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import junit.framework.TestCase
+
+class FieldReferencesEngineTest : TestCase() {
+
+    private val database = DatabaseKDBX("Database", "Root")
+
+    private fun addEntry(title: String, password: String): EntryKDBX {
+        return database.createEntry().apply {
+            nodeId = database.newEntryId()
+            this.title = title
+            this.password = password
+            startToManageFieldReferences(database)
+            database.addEntryTo(this, database.rootGroup)
+        }
+    }
+
+    fun testReference() {
+        addEntry("Target", "secret")
+        val source = addEntry("Source", "{REF:P@T:target}")
+        assertEquals("secret", source.password)
+    }
+
+    fun testAddEntry() {
+        val source = addEntry("Source", "{REF:P@T:Target}")
+        // Kept as written while no entry is found
+        assertEquals("{REF:P@T:Target}", source.password)
+        addEntry("Target", "secret")
+        assertEquals("secret", source.password)
+    }
+
+    fun testUpdateEntry() {
+        val target = addEntry("Target", "secret")
+        val source = addEntry("Source", "{REF:P@T:Target}")
+        assertEquals("secret", source.password)
+        target.password = "modified"
+        database.updateEntry(target)
+        assertEquals("modified", source.password)
+        target.title = "Renamed"
+        database.updateEntry(target)
+        assertEquals("{REF:P@T:Target}", source.password)
+    }
+
+    fun testRemoveEntry() {
+        val target = addEntry("Target", "secret")
+        val source = addEntry("Source", "{REF:P@T:Target}")
+        assertEquals("secret", source.password)
+        database.removeEntryFrom(target, database.rootGroup)
+        assertEquals("{REF:P@T:Target}", source.password)
+    }
+
+    fun testFirstEntryFound() {
+        val first = addEntry("Target", "first")
+        addEntry("Target", "second")
+        val source = addEntry("Source", "{REF:P@T:Target}")
+        assertEquals("first", source.password)
+        // A modified entry keeps its position in the index
+        first.notes = "Modified"
+        database.updateEntry(first)
+        assertEquals("first", source.password)
+        database.removeEntryFrom(first, database.rootGroup)
+        assertEquals("second", source.password)
+    }
+
+    fun testNestedReferences() {
+        val target = addEntry("Target", "secret")
+        addEntry("Intermediate", "{REF:P@T:Target}")
+        val source = addEntry("Source", "{REF:P@T:Intermediate}")
+        assertEquals("secret", source.password)
+        // The reference built with the modified entry is resolved again
+        target.password = "modified"
+        database.updateEntry(target)
+        assertEquals("modified", source.password)
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.database
+
+import com.kunzisoft.keepass.database.element.database.DatabaseKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import junit.framework.TestCase
+
+class GroupFlagsTest : TestCase() {
+
+    private val database = DatabaseKDBX("Database", "Root")
+
+    private fun addGroup(title: String, parent: GroupKDBX?): GroupKDBX {
+        return database.createGroup().apply {
+            nodeId = database.newGroupId()
+            this.title = title
+            database.addGroupTo(this, parent)
+        }
+    }
+
+    fun testInheritedSearchable() {
+        val parent = addGroup("Parent", database.rootGroup)
+        val child = addGroup("Child", parent)
+        val other = addGroup("Other", database.rootGroup)
+        assertTrue(database.isSearchable(child))
+        assertTrue(database.isSearchable(other))
+
+        parent.enableSearching = false
+        database.updateGroup(parent)
+        assertFalse(database.isSearchable(parent))
+        assertFalse(database.isSearchable(child))
+        assertTrue(database.isSearchable(other))
+    }
+
+    fun testMoveGroup() {
+        val hidden = addGroup("Hidden", database.rootGroup).apply {
+            enableSearching = false
+        }
+        val child = addGroup("Child", database.rootGroup)
+        val grandChild = addGroup("Grand child", child)
+        assertTrue(database.isSearchable(grandChild))
+
+        database.removeGroupFrom(child, database.rootGroup)
+        database.addGroupTo(child, hidden)
+        assertFalse(database.isSearchable(child))
+        assertFalse(database.isSearchable(grandChild))
+    }
+
+    fun testRecycleBin() {
+        val recycleBin = addGroup("Recycle bin", database.rootGroup)
+        val child = addGroup("Child", recycleBin)
+        assertFalse(database.isInRecycleBin(child))
+
+        database.recycleBinUUID = recycleBin.id
+        assertTrue(database.isInRecycleBin(recycleBin))
+        assertTrue(database.isInRecycleBin(child))
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.search.DomainIndex
+import junit.framework.TestCase
+
+class DomainIndexTest : TestCase() {
+
+    private val rootGroup = Group(GroupKDBX())
+    private val domainIndex = DomainIndex()
+
+    private fun addEntry(title: String, url: String): Entry {
+        return Entry(EntryKDBX()).apply {
+            this.title = title
+            this.url = url
+            rootGroup.addChildEntry(this)
+        }
+    }
+
+    fun testSubDomains() {
+        val entry = addEntry("Example", "https://login.example.com/path")
+        val other = addEntry("Other", "https://other.org")
+        domainIndex.build(rootGroup)
+        val candidates = domainIndex.getCandidates("example.com")
+        assertNotNull(candidates)
+        assertTrue(candidates!!.contains(entry.nodeId))
+        assertFalse(candidates.contains(other.nodeId))
+        assertTrue(domainIndex.getCandidates("login.example.com")!!.contains(entry.nodeId))
+    }
+
+    fun testLabelBoundaries() {
+        val australian = addEntry("Example AU", "https://example.com.au")
+        val prefixed = addEntry("My example", "https://my-example.com")
+        val application = addEntry("Application", "androidapp://com.example.application")
+        domainIndex.build(rootGroup)
+        // Other sites and applications are not proposed
+        assertFalse(domainIndex.getCandidates("example.com")!!.contains(australian.nodeId))
+        assertFalse(domainIndex.getCandidates("example.com")!!.contains(prefixed.nodeId))
+        assertFalse(domainIndex.getCandidates("com.example.app")!!.contains(application.nodeId))
+        assertTrue(domainIndex.getCandidates("com.example.application")!!.contains(application.nodeId))
+    }
+
+    fun testNotDomain() {
+        addEntry("Example", "https://example.com")
+        domainIndex.build(rootGroup)
+        // Resolved by the full search
+        assertNull(domainIndex.getCandidates("example"))
+    }
+
+    fun testUpdateEntry() {
+        val entry = addEntry("Example", "https://example.com")
+        domainIndex.build(rootGroup)
+        entry.url = "https://example.org"
+        domainIndex.updateEntry(entry)
+        assertFalse(domainIndex.getCandidates("example.com")!!.contains(entry.nodeId))
+        assertTrue(domainIndex.getCandidates("example.org")!!.contains(entry.nodeId))
+    }
+}
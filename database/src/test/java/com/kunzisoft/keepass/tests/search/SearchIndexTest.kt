@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.search
+
+import com.kunzisoft.keepass.database.element.Entry
+import com.kunzisoft.keepass.database.element.Field
+import com.kunzisoft.keepass.database.element.Group
+import com.kunzisoft.keepass.database.element.entry.EntryKDBX
+import com.kunzisoft.keepass.database.element.group.GroupKDBX
+import com.kunzisoft.keepass.database.element.security.ProtectedString
+import com.kunzisoft.keepass.database.search.SearchIndex
+import com.kunzisoft.keepass.database.search.SearchParameters
+import junit.framework.TestCase
+
+class SearchIndexTest : TestCase() {
+
+    private val rootGroup = Group(GroupKDBX())
+    private val searchIndex = SearchIndex()
+
+    private fun addEntry(title: String): Entry {
+        return Entry(EntryKDBX()).apply {
+            this.title = title
+            rootGroup.addChildEntry(this)
+        }
+    }
+
+    private fun getCandidates(query: String): Set<Any>? {
+        return searchIndex.getCandidates(SearchParameters().apply {
+            searchQuery = query
+        })
+    }
+
+    fun testCandidates() {
+        val entry = addEntry("Example")
+        val other = addEntry("Other")
+        searchIndex.build(rootGroup)
+        val candidates = getCandidates("xamp")
+        assertNotNull(candidates)
+        assertTrue(candidates!!.contains(entry.nodeId))
+        assertFalse(candidates.contains(other.nodeId))
+    }
+
+    fun testProtectedFieldNotIndexed() {
+        val entry = addEntry("Bank")
+        entry.putExtraField(Field("PIN", ProtectedString(true, "secret code")))
+        val other = addEntry("Other")
+        other.putExtraField(Field("Note", ProtectedString(false, "public code")))
+        searchIndex.build(rootGroup)
+        // The entry with a protected field is still checked by the search
+        assertTrue(getCandidates("secret")!!.contains(entry.nodeId))
+        assertFalse(getCandidates("secret")!!.contains(other.nodeId))
+        assertTrue(getCandidates("public")!!.contains(other.nodeId))
+    }
+
+    fun testUpdateEntry() {
+        val entry = addEntry("Example")
+        searchIndex.build(rootGroup)
+        entry.title = "Modified"
+        searchIndex.updateEntry(entry)
+        assertFalse(getCandidates("example")!!.contains(entry.nodeId))
+        assertTrue(getCandidates("modified")!!.contains(entry.nodeId))
+        searchIndex.removeEntry(entry.nodeId)
+        assertFalse(getCandidates("modified")!!.contains(entry.nodeId))
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.search
+
+import com.kunzisoft.keepass.database.search.SearchQueryPlan
+import junit.framework.TestCase
+import java.util.*
+
+class SearchQueryPlanTest : TestCase() {
+
+    fun testWordsCaseInsensitive() {
+        val plan = SearchQueryPlan("bank ACCOUNT", caseSensitive = false, isRegex = false)
+        assertTrue(plan.matches("My Bank account"))
+        assertTrue(plan.matches("accountbank"))
+        assertFalse(plan.matches("My Bank"))
+        assertFalse(plan.matches(""))
+    }
+
+    fun testWordsCaseSensitive() {
+        val plan = SearchQueryPlan("Bank", caseSensitive = true, isRegex = false)
+        assertTrue(plan.matches("My Bank account"))
+        assertFalse(plan.matches("my bank account"))
+    }
+
+    fun testRegex() {
+        val plan = SearchQueryPlan("ba.k", caseSensitive = false, isRegex = true)
+        assertTrue(plan.matches("BANK"))
+        assertFalse(plan.matches("my bank"))
+    }
+
+    fun testSameResultsAsContains() {
+        val random = Random(42)
+        val alphabet = "abcABCéÉ İıxyz"
+        fun randomString(length: Int): String {
+            return String(CharArray(length) { alphabet[random.nextInt(alphabet.length)] })
+        }
+        repeat(2000) {
+            val text = randomString(random.nextInt(40))
+            val word = randomString(1 + random.nextInt(6)).replace(" ", "")
+            listOf(true, false).forEach { caseSensitive ->
+                val plan = SearchQueryPlan(word, caseSensitive, false)
+                assertEquals("\"$word\" in \"$text\"",
+                    text.isNotEmpty() && text.contains(word, !caseSensitive),
+                    plan.matches(text))
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import org.junit.Assert.assertArrayEquals
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.Random
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+import junit.framework.TestCase
+
+import com.kunzisoft.keepass.stream.BlockCipherInputStream
+
+class BlockCipherStreamTest : TestCase() {
+
+    private fun getCipher(mode: Int): Cipher {
+        return Cipher.getInstance("AES/CBC/PKCS5Padding").apply {
+            init(mode, SecretKeySpec(key, "AES"), IvParameterSpec(iv))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testDecryption() {
+        for (testLength in intArrayOf(0, 15, 16, 1000, 500000)) {
+            val orig = ByteArray(testLength)
+            rand.nextBytes(orig)
+            val encrypted = getCipher(Cipher.ENCRYPT_MODE).doFinal(orig)
+
+            val input = BlockCipherInputStream(
+                ByteArrayInputStream(encrypted),
+                getCipher(Cipher.DECRYPT_MODE),
+                4096
+            )
+            val decoded = ByteArrayOutputStream()
+            input.use {
+                val buf = ByteArray(1000)
+                while (true) {
+                    val read = it.read(buf)
+                    if (read == -1)
+                        break
+                    decoded.write(buf, 0, read)
+                }
+            }
+
+            assertArrayEquals("Output not equal to input", orig, decoded.toByteArray())
+        }
+    }
+
+    fun testIncompleteBlock() {
+        val encrypted = getCipher(Cipher.ENCRYPT_MODE).doFinal(ByteArray(100)).let {
+            it.copyOf(it.size - 1)
+        }
+
+        val input = BlockCipherInputStream(
+            ByteArrayInputStream(encrypted),
+            getCipher(Cipher.DECRYPT_MODE)
+        )
+        try {
+            input.readBytes()
+            fail("Incomplete block not detected")
+        } catch (e: IOException) {
+            // Expected
+        } finally {
+            input.close()
+        }
+    }
+
+    companion object {
+
+        private val rand = Random()
+        private val key = ByteArray(32).also { rand.nextBytes(it) }
+        private val iv = ByteArray(16).also { rand.nextBytes(it) }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import org.junit.Assert.assertArrayEquals
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.Random
+
+import junit.framework.TestCase
+
+import com.kunzisoft.keepass.stream.HmacBlockInputStream
+import com.kunzisoft.keepass.stream.HmacBlockOutputStream
+
+class HmacBlockTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testSequentialVerification() {
+        testReadAhead(0)
+    }
+
+    @Throws(IOException::class)
+    fun testReadAheadVerification() {
+        testReadAhead(3)
+    }
+
+    @Throws(IOException::class)
+    fun testReadAheadInvalidBlock() {
+        val encoded = encode(3 * 1024 * 1024 + 10)
+        // Corrupt a byte of the third block
+        encoded[encoded.size - 100] = (encoded[encoded.size - 100] + 1).toByte()
+
+        val input = HmacBlockInputStream(ByteArrayInputStream(encoded), true, key, 3)
+        val buf = ByteArray(1024 * 1024)
+        // Blocks before the corrupted one are still delivered
+        assertEquals(buf.size, input.read(buf))
+        try {
+            while (input.read(buf) != -1) {}
+            fail("Invalid block not detected")
+        } catch (e: IOException) {
+            assertEquals("Invalid Hmac", e.message)
+        } finally {
+            input.close()
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testReadAheadAfterClose() {
+        val encoded = encode(3 * 1024 * 1024 + 10)
+
+        val input = HmacBlockInputStream(ByteArrayInputStream(encoded), true, key, 3)
+        val buf = ByteArray(1024 * 1024)
+        assertEquals(buf.size, input.read(buf))
+        input.close()
+        try {
+            // The remaining bytes of the current block are still buffered
+            while (input.read(buf) != -1) {}
+            fail("Read after close not detected")
+        } catch (e: IOException) {
+            assertEquals("Stream closed", e.message)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun testReadAhead(readAheadBlocks: Int) {
+        val length = 5 * 1024 * 1024 + 1500
+        val encoded = encode(length)
+
+        val input = HmacBlockInputStream(ByteArrayInputStream(encoded), true, key, readAheadBlocks)
+        val decoded = ByteArrayOutputStream()
+        input.use {
+            val buf = ByteArray(8192)
+            while (true) {
+                val read = it.read(buf)
+                if (read == -1)
+                    break
+                decoded.write(buf, 0, read)
+            }
+        }
+
+        assertArrayEquals(orig.copyOf(length), decoded.toByteArray())
+    }
+
+    @Throws(IOException::class)
+    private fun encode(length: Int): ByteArray {
+        val bos = ByteArrayOutputStream()
+        HmacBlockOutputStream(bos, key).use {
+            it.write(orig, 0, length)
+        }
+        return bos.toByteArray()
+    }
+
+    companion object {
+
+        private val rand = Random()
+        private val key = ByteArray(64).apply { rand.nextBytes(this) }
+        private val orig = ByteArray(6 * 1024 * 1024).apply { rand.nextBytes(this) }
+    }
+}
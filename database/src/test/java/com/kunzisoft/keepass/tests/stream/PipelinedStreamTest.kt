@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import org.junit.Assert.assertArrayEquals
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.Random
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+import junit.framework.TestCase
+
+import com.kunzisoft.keepass.stream.PipelinedInputStream
+
+class PipelinedStreamTest : TestCase() {
+
+    @Throws(IOException::class)
+    fun testChainedStages() {
+        val testLength = 500000
+
+        val orig = ByteArray(testLength)
+        rand.nextBytes(orig)
+
+        val bos = ByteArrayOutputStream()
+        GZIPOutputStream(bos).use { it.write(orig) }
+
+        val input = GZIPInputStream(
+            PipelinedInputStream(
+                PipelinedInputStream(ByteArrayInputStream(bos.toByteArray()), "first", 1000, 2),
+                "second", 4096, 3
+            )
+        )
+
+        val decoded = ByteArrayOutputStream()
+        input.use {
+            val buf = ByteArray(1024)
+            while (true) {
+                val read = it.read(buf)
+                if (read == -1)
+                    break
+                decoded.write(buf, 0, read)
+            }
+        }
+
+        assertArrayEquals("Output not equal to input", orig, decoded.toByteArray())
+    }
+
+    fun testErrorAfterData() {
+        val orig = ByteArray(3000)
+        rand.nextBytes(orig)
+
+        val failingStream = object : InputStream() {
+            private val data = ByteArrayInputStream(orig)
+            override fun read(): Int {
+                return data.read().also {
+                    if (it == -1) throw IOException("Invalid Hmac")
+                }
+            }
+        }
+
+        val input = PipelinedInputStream(failingStream, "failing", 512, 2)
+        val decoded = ByteArray(orig.size)
+        var read = 0
+        while (read < orig.size) {
+            read += input.read(decoded, read, orig.size - read)
+        }
+        assertArrayEquals(orig, decoded)
+
+        try {
+            input.read()
+            fail("Error of the source not thrown")
+        } catch (e: IOException) {
+            assertEquals("Invalid Hmac", e.message)
+        } finally {
+            input.close()
+        }
+    }
+
+    companion object {
+
+        private val rand = Random()
+    }
+}
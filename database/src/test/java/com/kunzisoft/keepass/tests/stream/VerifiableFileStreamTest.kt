@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.stream
+
+import org.junit.Assert.assertArrayEquals
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.Random
+
+import junit.framework.TestCase
+
+import com.kunzisoft.keepass.stream.VerifiableFileOutputStream
+
+class VerifiableFileStreamTest : TestCase() {
+
+    private lateinit var file: File
+
+    override fun setUp() {
+        super.setUp()
+        file = File.createTempFile("verifiable", ".kdbx")
+    }
+
+    override fun tearDown() {
+        file.delete()
+        super.tearDown()
+    }
+
+    private fun writeFile(data: ByteArray, chunkSize: Int): VerifiableFileOutputStream {
+        return VerifiableFileOutputStream(file, 64).apply {
+            use { outputStream ->
+                var position = 0
+                while (position < data.size) {
+                    val count = minOf(chunkSize, data.size - position)
+                    if (count == 1)
+                        outputStream.write(data[position].toInt())
+                    else
+                        outputStream.write(data, position, count)
+                    position += count
+                }
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    fun testVerification() {
+        for (testLength in intArrayOf(0, 1, 63, 64, 65, 1000, 50000)) {
+            for (chunkSize in intArrayOf(1, 7, 64, 100, 4096)) {
+                val orig = ByteArray(testLength)
+                rand.nextBytes(orig)
+                writeFile(orig, chunkSize).verify()
+                assertArrayEquals("File not equal to input", orig, file.readBytes())
+            }
+        }
+    }
+
+    fun testCorruptedTrailer() {
+        val orig = ByteArray(1000)
+        rand.nextBytes(orig)
+        val outputStream = writeFile(orig, 100)
+        RandomAccessFile(file, "rw").use {
+            it.seek(990)
+            it.write(orig[990].toInt() xor 0xFF)
+        }
+        try {
+            outputStream.verify()
+            fail("Corrupted trailer not detected")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    fun testTruncatedFile() {
+        val orig = ByteArray(1000)
+        rand.nextBytes(orig)
+        val outputStream = writeFile(orig, 100)
+        RandomAccessFile(file, "rw").use {
+            it.setLength(900)
+        }
+        try {
+            outputStream.verify()
+            fail("Truncated file not detected")
+        } catch (e: IOException) {
+            // Expected
+        }
+    }
+
+    companion object {
+        private val rand = Random()
+    }
+}
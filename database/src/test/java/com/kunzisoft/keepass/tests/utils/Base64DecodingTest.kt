@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ *  KeePassDX is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDX is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDX.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.utils
+
+import com.kunzisoft.keepass.database.file.DateKDBXUtil
+import com.kunzisoft.keepass.utils.*
+import junit.framework.TestCase
+import org.junit.Assert.assertArrayEquals
+import java.lang.management.ManagementFactory
+import java.util.*
+
+class Base64DecodingTest : TestCase() {
+
+    fun testDecodeBytes() {
+        val random = Random()
+        for (size in 0..40) {
+            val bytes = ByteArray(size)
+            random.nextBytes(bytes)
+            // Decode with surrounding characters and line breaks
+            val encoded = "  " + Base64.getMimeEncoder(8, "\n".toByteArray()).encodeToString(bytes) + "\n"
+            val chars = ("#" + encoded + "#").toCharArray()
+
+            val output = ByteArray(size)
+            assertEquals(size, base64CharsToBytes(chars, 1, encoded.length, output))
+            assertArrayEquals(bytes, output)
+        }
+    }
+
+    fun testDecodeLimitedOutput() {
+        val bytes = byteArrayOf(1, 2, 3, 4, 5, 6, 7, 8, 9, 10)
+        val chars = Base64.getEncoder().encodeToString(bytes).toCharArray()
+
+        val output = ByteArray(8)
+        assertEquals(10, base64CharsToBytes(chars, 0, chars.size, output))
+        assertArrayEquals(bytes.copyOf(8), output)
+    }
+
+    fun testDecodeInvalid() {
+        val chars = "AAE*AA==".toCharArray()
+        assertEquals(-1, base64CharsToBytes(chars, 0, chars.size, ByteArray(16)))
+    }
+
+    fun testDecodeUuid() {
+        val uuid = UUID.randomUUID()
+        val chars = Base64.getEncoder().encodeToString(uuidTo16Bytes(uuid)).toCharArray()
+
+        val output = ByteArray(16)
+        assertEquals(16, base64CharsToBytes(chars, 0, chars.size, output))
+        assertEquals(uuid, bytes16ToUuid(output))
+    }
+
+    fun testKDBX4Time() {
+        val date = Date(1679481600000L) // 2023-03-22T10:40:00Z
+        val seconds = DateKDBXUtil.convertDateToKDBX4Time(date)
+        assertEquals(63815078400L, seconds)
+        assertEquals(date.time, DateKDBXUtil.convertKDBX4TimeToMillis(seconds))
+        // Corrupted dates are set to the Java epoch
+        assertEquals(0L, DateKDBXUtil.convertKDBX4TimeToMillis(42L))
+        assertEquals(0L, DateKDBXUtil.convertKDBX4TimeToMillis(-1L))
+    }
+
+    /**
+     * Compare the memory allocated to decode a timestamp and a UUID
+     * with the previous String and array based decoding
+     */
+    fun testAllocations() {
+        val threadBean = ManagementFactory.getThreadMXBean()
+        if (threadBean !is com.sun.management.ThreadMXBean
+                || !threadBean.isThreadAllocatedMemorySupported) {
+            return
+        }
+        val uuidChars = Base64.getEncoder()
+            .encodeToString(uuidTo16Bytes(UUID.randomUUID())).toCharArray()
+        val dateChars = Base64.getEncoder()
+            .encodeToString(longTo8Bytes(63815078400L)).toCharArray()
+        val iterations = 100000
+
+        val previousDecoding = measureAllocations(threadBean, iterations) {
+            val uuid = bytes16ToUuid(Base64.getDecoder().decode(String(uuidChars)))
+            val seconds = bytes64ToLong(Base64.getDecoder().decode(String(dateChars)))
+            uuid.hashCode().toLong() + Date((seconds - 62135596800L) * 1000L).time
+        }
+        val buffer = ByteArray(16)
+        val charDecoding = measureAllocations(threadBean, iterations) {
+            base64CharsToBytes(uuidChars, 0, uuidChars.size, buffer)
+            val uuid = bytes16ToUuid(buffer)
+            buffer.fill(0)
+            base64CharsToBytes(dateChars, 0, dateChars.size, buffer)
+            uuid.hashCode().toLong() + DateKDBXUtil.convertKDBX4TimeToMillis(bytes64ToLong(buffer))
+        }
+        assertTrue(charDecoding < previousDecoding / 2)
+    }
+
+    private fun measureAllocations(threadBean: com.sun.management.ThreadMXBean,
+                                   iterations: Int,
+                                   decode: () -> Long): Long {
+        val threadId = Thread.currentThread().id
+        var result = 0L
+        // Warm up
+        for (i in 0 until iterations) {
+            result += decode()
+        }
+        val start = threadBean.getThreadAllocatedBytes(threadId)
+        for (i in 0 until iterations) {
+            result += decode()
+        }
+        val allocated = threadBean.getThreadAllocatedBytes(threadId) - start
+        assertTrue(result != 0L)
+        return allocated / iterations
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 Jeremy Jamet / Kunzisoft.
+ *
+ * This file is part of KeePassDX.
+ *
+ * KeePassDX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KeePassDX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KeePassDX. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.kunzisoft.keepass.tests.utils
+
+import com.kunzisoft.keepass.database.element.Tags
+import junit.framework.TestCase
+
+class TagsTest : TestCase() {
+
+    fun testParseWithoutDuplicates() {
+        val tags = Tags("work;home,work, ,bank")
+        assertEquals(listOf("work", "home", "bank"), tags.toList())
+        assertEquals("work,home,bank", tags.toString())
+    }
+
+    fun testPutKeepsInsertionOrder() {
+        val tags = Tags()
+        tags.put("b")
+        tags.put("a")
+        tags.put("b")
+        tags.put(" ")
+        assertEquals(2, tags.size())
+        assertEquals("b", tags.get(0))
+        assertEquals("a", tags.get(1))
+        assertTrue(tags.contains("a"))
+        assertFalse(tags.contains("c"))
+    }
+
+    fun testSetTags() {
+        val tags = Tags("a,b")
+        tags.setTags(Tags("c"))
+        assertFalse(tags.contains("a"))
+        assertTrue(tags.contains("c"))
+        tags.clear()
+        assertFalse(tags.contains("c"))
+        assertTrue(tags.isEmpty())
+    }
+}